@@ -18,6 +18,12 @@ public class Test
 
 	int defaultProp { get; set; default = 0 }
 
+	void bump (int n)
+	{
+		this.defaultProp++
+		this.defaultProp += n
+	}
+
 	public static void main (String[] argv)
 	{
 		Test test = new Test ()
@@ -27,5 +33,6 @@ public class Test
 			System.out.println ("DefaultProp changed from "+oldVal+" to "+newVal)
 
 		test.defaultProp = 1
+		test.bump (2)
 	}
 }
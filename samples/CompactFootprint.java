@@ -0,0 +1,159 @@
+import java.lang.management.ManagementFactory;
+
+/**
+ * Compares the heap taken and the time spent making objects with forty int properties keeping their
+ * observers in fields of their own and in a compact table. No observers are added, so the table is never allocated.
+ * Run it with a heap large enough for a million objects of each, the default usually is.
+ *
+ *     java -jar JavaGrande.jar -d . samples/CompactFootprint.java
+ *     java CompactFootprint
+ */
+public class CompactFootprint
+{
+	static final int COUNT = 1_000_000
+
+	// Kept in a field so the objects stay reachable while the heap is measured
+	static Object[] objects
+
+	static class Fields
+	{
+		int p0 { get; set; }
+		int p1 { get; set; }
+		int p2 { get; set; }
+		int p3 { get; set; }
+		int p4 { get; set; }
+		int p5 { get; set; }
+		int p6 { get; set; }
+		int p7 { get; set; }
+		int p8 { get; set; }
+		int p9 { get; set; }
+		int p10 { get; set; }
+		int p11 { get; set; }
+		int p12 { get; set; }
+		int p13 { get; set; }
+		int p14 { get; set; }
+		int p15 { get; set; }
+		int p16 { get; set; }
+		int p17 { get; set; }
+		int p18 { get; set; }
+		int p19 { get; set; }
+		int p20 { get; set; }
+		int p21 { get; set; }
+		int p22 { get; set; }
+		int p23 { get; set; }
+		int p24 { get; set; }
+		int p25 { get; set; }
+		int p26 { get; set; }
+		int p27 { get; set; }
+		int p28 { get; set; }
+		int p29 { get; set; }
+		int p30 { get; set; }
+		int p31 { get; set; }
+		int p32 { get; set; }
+		int p33 { get; set; }
+		int p34 { get; set; }
+		int p35 { get; set; }
+		int p36 { get; set; }
+		int p37 { get; set; }
+		int p38 { get; set; }
+		int p39 { get; set; }
+	}
+
+	static class Compact
+	{
+		int p0 { get; set; compact }
+		int p1 { get; set; compact }
+		int p2 { get; set; compact }
+		int p3 { get; set; compact }
+		int p4 { get; set; compact }
+		int p5 { get; set; compact }
+		int p6 { get; set; compact }
+		int p7 { get; set; compact }
+		int p8 { get; set; compact }
+		int p9 { get; set; compact }
+		int p10 { get; set; compact }
+		int p11 { get; set; compact }
+		int p12 { get; set; compact }
+		int p13 { get; set; compact }
+		int p14 { get; set; compact }
+		int p15 { get; set; compact }
+		int p16 { get; set; compact }
+		int p17 { get; set; compact }
+		int p18 { get; set; compact }
+		int p19 { get; set; compact }
+		int p20 { get; set; compact }
+		int p21 { get; set; compact }
+		int p22 { get; set; compact }
+		int p23 { get; set; compact }
+		int p24 { get; set; compact }
+		int p25 { get; set; compact }
+		int p26 { get; set; compact }
+		int p27 { get; set; compact }
+		int p28 { get; set; compact }
+		int p29 { get; set; compact }
+		int p30 { get; set; compact }
+		int p31 { get; set; compact }
+		int p32 { get; set; compact }
+		int p33 { get; set; compact }
+		int p34 { get; set; compact }
+		int p35 { get; set; compact }
+		int p36 { get; set; compact }
+		int p37 { get; set; compact }
+		int p38 { get; set; compact }
+		int p39 { get; set; compact }
+	}
+
+	public static void main (String[] args)
+	{
+		// Warm up both paths so the timed runs are compiled
+		objects = new Object[COUNT / 10]
+		fields (objects)
+		compact (objects)
+
+		objects = new Object[COUNT]
+		long before = used ()
+		long time = fields (objects)
+		double fields = (used ()-before) / (double) COUNT
+		System.out.printf ("fields   %6.1f B/object %5d ms%n", fields, time / 1_000_000)
+
+		objects = new Object[COUNT]
+		before = used ()
+		time = compact (objects)
+		double compact = (used ()-before) / (double) COUNT
+		System.out.printf ("compact  %6.1f B/object %5d ms%n", compact, time / 1_000_000)
+
+		if (compact >= fields)
+			throw new AssertionError ("Compact objects take "+compact+" bytes, ones with observer fields "+fields)
+	}
+
+	static long fields (Object[] objects)
+	{
+		long start = System.nanoTime ()
+		for (int i = 0; i < objects.length; i++)
+		{
+			Fields f = new Fields ()
+			f.setP0 (i)
+			objects[i] = f
+		}
+		return System.nanoTime ()-start
+	}
+
+	static long compact (Object[] objects)
+	{
+		long start = System.nanoTime ()
+		for (int i = 0; i < objects.length; i++)
+		{
+			Compact c = new Compact ()
+			c.setP0 (i)
+			objects[i] = c
+		}
+		return System.nanoTime ()-start
+	}
+
+	static long used ()
+	{
+		for (int i = 0; i < 4; i++)
+			System.gc ()
+		return ManagementFactory.getMemoryMXBean ().getHeapMemoryUsage ().getUsed ()
+	}
+}
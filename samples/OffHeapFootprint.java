@@ -0,0 +1,99 @@
+import java.lang.management.ManagementFactory;
+
+/**
+ * Compares the heap taken and the time spent making objects with plain and with off heap properties.
+ * Both keep their observers in a compact table, so the difference is the fields of the properties.
+ * Run it with a heap large enough for a million objects of each, the default usually is.
+ *
+ *     java -jar JavaGrande.jar -d . samples/OffHeapFootprint.java
+ *     java OffHeapFootprint
+ */
+public class OffHeapFootprint
+{
+	static final int COUNT = 1_000_000
+
+	// Kept in a field so the objects stay reachable while the heap is measured
+	static Object[] objects
+
+	static class Plain
+	{
+		long id { get; set; compact }
+		long created { get; set; compact }
+		long updated { get; set; compact }
+		double price { get; set; compact }
+		double cost { get; set; compact }
+		int stock { get; set; compact }
+		int sold { get; set; compact }
+		boolean active { get; set; compact }
+	}
+
+	static class OffHeap
+	{
+		long id { get; set; compact; offheap }
+		long created { get; set; compact; offheap }
+		long updated { get; set; compact; offheap }
+		double price { get; set; compact; offheap }
+		double cost { get; set; compact; offheap }
+		int stock { get; set; compact; offheap }
+		int sold { get; set; compact; offheap }
+		boolean active { get; set; compact; offheap }
+	}
+
+	public static void main (String[] args)
+	{
+		// Warm up both paths so the timed runs are compiled, then give the records back
+		objects = new Object[COUNT / 10]
+		plain (objects)
+		offHeap (objects)
+		for (Object o : objects)
+			((OffHeap) o).releaseStorage ()
+
+		objects = new Object[COUNT]
+		long before = used ()
+		long time = plain (objects)
+		double plain = (used ()-before) / (double) COUNT
+		System.out.printf ("plain     %6.1f B/object %5d ms%n", plain, time / 1_000_000)
+
+		objects = new Object[COUNT]
+		before = used ()
+		time = offHeap (objects)
+		double offHeap = (used ()-before) / (double) COUNT
+		System.out.printf ("off heap  %6.1f B/object %5d ms%n", offHeap, time / 1_000_000)
+
+		if (offHeap >= plain)
+			throw new AssertionError ("Off heap objects take "+offHeap+" bytes, plain ones "+plain)
+	}
+
+	static long plain (Object[] objects)
+	{
+		long start = System.nanoTime ()
+		for (int i = 0; i < objects.length; i++)
+		{
+			Plain p = new Plain ()
+			p.setId (i)
+			p.setStock (i)
+			objects[i] = p
+		}
+		return System.nanoTime ()-start
+	}
+
+	static long offHeap (Object[] objects)
+	{
+		long start = System.nanoTime ()
+		for (int i = 0; i < objects.length; i++)
+		{
+			OffHeap p = new OffHeap ()
+			p.setId (i)
+			p.setStock (i)
+			objects[i] = p
+		}
+		return System.nanoTime ()-start
+	}
+
+	static long used ()
+	{
+		for (int i = 0; i < 4; i++)
+			System.gc ()
+		return ManagementFactory.getMemoryMXBean ().getHeapMemoryUsage ().getUsed ()
+	}
+}
@@ -0,0 +1,59 @@
+import java.lang.ref.WeakReference;
+
+/**
+ * Shows that a model with weak observers does not keep its views alive, while one with plain observers does.
+ * Each view holds its own observer, as views registering weakly must.
+ *
+ *     java -jar JavaGrande.jar -d . samples/WeakObservers.java
+ *     java WeakObservers
+ */
+public class WeakObservers
+{
+	static class Model
+	{
+		String title { get; set; weak }
+		String status { get; set; }
+	}
+
+	static class View
+	{
+		int seen
+		final byte[] pixels = new byte[1 << 20]
+		final com.idioticdev.javagrande.PropertyObserver<String> observer = (old, value) -> seen++
+	}
+
+	public static void main (String[] args) throws Exception
+	{
+		Model model = new Model ()
+
+		View weakView = new View ()
+		model.addTitleObserver (weakView.observer)
+		View strongView = new View ()
+		model.addStatusObserver (strongView.observer)
+
+		model.setTitle ("open")
+		model.setStatus ("open")
+		System.out.println ("while referenced: weak view saw "+weakView.seen+", strong view saw "+strongView.seen)
+
+		// Drop the only references the views have outside the model
+		WeakReference<View> weak = new WeakReference<View> (weakView)
+		WeakReference<View> strong = new WeakReference<View> (strongView)
+		weakView = null
+		strongView = null
+		for (int i = 0; i < 10 && weak.get () != null; i++)
+		{
+			System.gc ()
+			Thread.sleep (10)
+		}
+
+		// Setting again expunges the cleared reference
+		model.setTitle ("closed")
+		model.setStatus ("closed")
+		System.out.println ("weak view collected "+(weak.get () == null)+", strong view collected "+(strong.get () == null))
+
+		if (weak.get () != null)
+			throw new AssertionError ("A weak observer kept its view reachable")
+		if (strong.get () == null)
+			throw new AssertionError ("A plain observer did not keep its view reachable")
+	}
+}
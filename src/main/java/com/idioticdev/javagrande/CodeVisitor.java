@@ -1,8 +1,14 @@
 package com.idioticdev.javagrande;
 
 import java.lang.reflect.Modifier;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.LinkedList;
+import java.util.Map;
 
 import java.lang.reflect.Method;
 import java.lang.reflect.Field;
@@ -13,25 +19,37 @@ import com.github.javaparser.ast.CompilationUnit;
 import com.github.javaparser.ast.visitor.VoidVisitorAdapter;
 import com.github.javaparser.ast.body.TypeDeclaration;
 import com.github.javaparser.ast.body.BodyDeclaration;
+import com.github.javaparser.ast.body.ClassOrInterfaceDeclaration;
+import com.github.javaparser.ast.body.EnumDeclaration;
+import com.github.javaparser.ast.body.ModifierSet;
 import com.github.javaparser.ast.body.FieldDeclaration;
 import com.github.javaparser.ast.body.MethodDeclaration;
+import com.github.javaparser.ast.body.ConstructorDeclaration;
 import com.github.javaparser.ast.body.VariableDeclarator;
 import com.github.javaparser.ast.body.VariableDeclaratorId;
 import com.github.javaparser.ast.stmt.Statement;
-import com.github.javaparser.ast.stmt.ExpressionStmt;
 import com.github.javaparser.ast.stmt.BlockStmt;
 import com.github.javaparser.ast.stmt.ReturnStmt;
-import com.github.javaparser.ast.stmt.IfStmt;
+import com.github.javaparser.ast.stmt.ExpressionStmt;
 import com.github.javaparser.ast.expr.FieldAccessExpr;
 import com.github.javaparser.ast.expr.ThisExpr;
 import com.github.javaparser.ast.expr.NameExpr;
 import com.github.javaparser.ast.expr.AssignExpr;
+import com.github.javaparser.ast.expr.BinaryExpr;
+import com.github.javaparser.ast.expr.CastExpr;
+import com.github.javaparser.ast.expr.EnclosedExpr;
+import com.github.javaparser.ast.expr.IntegerLiteralExpr;
+import com.github.javaparser.ast.expr.UnaryExpr;
 import com.github.javaparser.ast.expr.Expression;
 import com.github.javaparser.ast.expr.MethodCallExpr;
-import com.github.javaparser.ast.expr.BinaryExpr;
-import com.github.javaparser.ast.expr.NullLiteralExpr;
+import com.github.javaparser.ast.expr.LambdaExpr;
+import com.github.javaparser.ast.expr.ObjectCreationExpr;
+import com.github.javaparser.ast.expr.VariableDeclarationExpr;
 import com.github.javaparser.ast.type.ClassOrInterfaceType;
+import com.github.javaparser.ast.type.PrimitiveType;
+import com.github.javaparser.ast.type.ReferenceType;
 import com.github.javaparser.ast.type.Type;
+import com.github.javaparser.ast.TypeParameter;
 
 /**
  * Walks the AST and modifies it, replacing the JavaGrande syntax with it's counter part.
@@ -42,6 +60,25 @@ import com.github.javaparser.ast.type.Type;
  */
 public class CodeVisitor<T> extends VoidVisitorAdapter<T>
 {
+	/**
+	 * VarHandle methods reading a property and swapping its value for each access mode.
+	 * There is no plain or opaque swap, a release one is the weakest that is atomic.
+	 */
+	private static final Map<String, String> GETTERS = new HashMap<> ();
+	private static final Map<String, String> SWAPS = new HashMap<> ();
+
+	static
+	{
+		GETTERS.put ("plain", "get");
+		SWAPS.put ("plain", "getAndSetRelease");
+		GETTERS.put ("opaque", "getOpaque");
+		SWAPS.put ("opaque", "getAndSetRelease");
+		GETTERS.put ("acquire", "getAcquire");
+		SWAPS.put ("acquire", "getAndSetRelease");
+		GETTERS.put ("volatile", "getVolatile");
+		SWAPS.put ("volatile", "getAndSet");
+	}
+
 	private List<PropertyDeclaration> props = new LinkedList<> ();
 	private List<FieldAccessExpr> fields = new LinkedList<> ();
 	private CompilationUnit cu;
@@ -75,6 +112,48 @@ public class CodeVisitor<T> extends VoidVisitorAdapter<T>
 		fields.add (field);
 	}
 
+	/**
+	 * Visitor for a copy of the compilation unit, see {@link JavaSource#copy}. The copy's fields are found by their
+	 * position in the tree, which is the same in both.
+	 *
+	 * @param from Compilation unit this visitor was used on
+	 * @param to Copy of the compilation unit
+	 * @return Visitor holding the copies of the collected fields
+	 */
+	public CodeVisitor<T> copy (CompilationUnit from, CompilationUnit to)
+	{
+		List<FieldAccessExpr> original = new ArrayList<> ();
+		List<FieldAccessExpr> copied = new ArrayList<> ();
+		FieldCollector collector = new FieldCollector ();
+		collector.visit (from, original);
+		collector.visit (to, copied);
+
+		Map<FieldAccessExpr, Integer> index = new IdentityHashMap<> ();
+		for (int i = 0; i < original.size (); i++)
+			index.put (original.get (i), i);
+
+		CodeVisitor<T> visitor = new CodeVisitor<> ();
+		visitor.cu = to;
+		for (FieldAccessExpr field : fields)
+			if (index.containsKey (field))
+				visitor.fields.add (copied.get (index.get (field)));
+
+		return visitor;
+	}
+
+	/**
+	 * Collects every {@link FieldAccessExpr} of a tree in order.
+	 */
+	private static class FieldCollector extends VoidVisitorAdapter<List<FieldAccessExpr>>
+	{
+		@Override
+		public void visit (final FieldAccessExpr field, final List<FieldAccessExpr> arg)
+		{
+			arg.add (field);
+			super.visit (field, arg);
+		}
+	}
+
 	public boolean hasProperties ()
 	{
 		return props.size () > 0;
@@ -84,17 +163,97 @@ public class CodeVisitor<T> extends VoidVisitorAdapter<T>
 	/**
 	 * Preforms first pass of code generation and transforming.
 	 * Currently generates the field, getter, and setter for each property.
+	 *
+	 * @throws ParseException Options of a property do not fit the class declaring it
 	 */
-	public void generate ()
+	public void generate () throws ParseException
 	{
+		// Options depending on the class of the property are checked once it is known
+		for (PropertyDeclaration prop : props)
+		{
+			String error = prop.checkOptions ();
+			if (error != null)
+				throw new ParseException (error+" at line "+prop.getBeginLine ()+", column "+prop.getBeginColumn ());
+		}
+
 		if (hasProperties ())
 		{
 			List<ImportDeclaration> imports = cu.getImports ();
 			if (imports == null) imports = new LinkedList<ImportDeclaration> ();
 			imports.add (new ImportDeclaration(new NameExpr (PropertyObserverSource.getPackage ()), false, false));
+
+			List<String> observers = new LinkedList<> ();
+			for (PropertyDeclaration prop : props)
+			{
+				String observer = PropertyObserverSource.getObserver (prop.getType ().toString ());
+				if (!observer.equals ("PropertyObserver") && !observers.contains (observer))
+				{
+					observers.add (observer);
+					imports.add (new ImportDeclaration(new NameExpr ("com.idioticdev.javagrande."+observer), false, false));
+				}
+			}
 			cu.setImports (imports);
 		}
 
+		// Members shared by the properties of a class are generated with the first one needing them
+		Map<TypeDeclaration, Boolean> journaled = new IdentityHashMap<> ();
+		Map<TypeDeclaration, Boolean> tabled = new IdentityHashMap<> ();
+		Map<TypeDeclaration, Boolean> tracked = new IdentityHashMap<> ();
+
+		// Compact properties of a class share one observer table, each at its own index
+		Map<TypeDeclaration, Integer> tables = new IdentityHashMap<> ();
+		Map<PropertyDeclaration, Integer> ordinals = number ("compact", tables);
+
+		// Each dirty tracked property has a bit in its object's mask
+		Map<TypeDeclaration, Integer> masks = new IdentityHashMap<> ();
+		Map<PropertyDeclaration, Integer> bits = number ("dirty", masks);
+
+		// Instance properties of classes that can hold statics are listed in a table of the class
+		Map<TypeDeclaration, List<PropertyDeclaration>> described = new IdentityHashMap<> ();
+		for (PropertyDeclaration prop : props)
+			if (!prop.isStatic () && isStatic ((TypeDeclaration) prop.getParentNode ()))
+				described.computeIfAbsent ((TypeDeclaration) prop.getParentNode (), (k) -> new LinkedList<> ()).add (prop);
+
+		// Properties with the codec option are encoded by the binary codec of their class
+		Map<TypeDeclaration, List<PropertyDeclaration>> encoded = new IdentityHashMap<> ();
+		for (PropertyDeclaration prop : props)
+			if (prop.hasOption ("codec"))
+			{
+				String error = encodable (prop);
+				if (error != null)
+					throw new ParseException (error+" at line "+prop.getBeginLine ()+", column "+prop.getBeginColumn ());
+				encoded.computeIfAbsent ((TypeDeclaration) prop.getParentNode (), (k) -> new LinkedList<> ()).add (prop);
+			}
+
+		// Columnar properties of a class get a column each in its table class
+		Map<TypeDeclaration, List<PropertyDeclaration>> columnar = new IdentityHashMap<> ();
+		for (PropertyDeclaration prop : props)
+			if (prop.hasOption ("columnar"))
+				columnar.computeIfAbsent ((TypeDeclaration) prop.getParentNode (), (k) -> new LinkedList<> ()).add (prop);
+
+		// Off heap properties of a class are laid out in a record of its store, each aligned to its size
+		Map<PropertyDeclaration, Integer> offsets = new IdentityHashMap<> ();
+		Map<TypeDeclaration, Integer> records = new IdentityHashMap<> ();
+		Map<TypeDeclaration, Boolean> stored = new IdentityHashMap<> ();
+		for (PropertyDeclaration prop : props)
+			if (prop.hasOption ("offheap"))
+			{
+				int size = size (prop.getType ().toString ());
+				int offset = records.getOrDefault ((TypeDeclaration) prop.getParentNode (), 0);
+				offset = (offset+size-1) / size*size;
+				offsets.put (prop, offset);
+				records.put ((TypeDeclaration) prop.getParentNode (), offset+size);
+			}
+
+		// Setting a property marks the computed properties reading it dirty
+		Map<PropertyDeclaration, String> invalidates = new IdentityHashMap<> ();
+		for (PropertyDeclaration prop : props)
+			if (prop.hasOption ("compute"))
+				for (PropertyDeclaration input : inputs (prop))
+					invalidates.merge (input, "	_invalidate"+upper (prop.getName ())+" ();\n", String::concat);
+
+		inline (invalidates);
+
 		for (PropertyDeclaration prop : props)
 		{
 			TypeDeclaration parent = (TypeDeclaration) prop.getParentNode ();
@@ -102,93 +261,405 @@ public class CodeVisitor<T> extends VoidVisitorAdapter<T>
 			int last = members.get (members.size ()-1).getEndLine ()+1;
 			int col = members.get (members.size ()-1).getBeginColumn ();
 
+			// Static lazy properties are read only and use a holder class, the JVM initializes it on first access
+			if (prop.hasOption ("lazy") && prop.isStatic ())
+			{
+				String holder = "_"+upper (prop.getName ())+"Holder";
+				int modifiers = prop.getGet ().getModifiers () | prop.getSet ().getModifiers ();
+				if (!ModifierSet.isPrivate (modifiers) && !ModifierSet.isProtected (modifiers))
+					modifiers = ModifierSet.addModifier (modifiers, Modifier.PUBLIC);
+				String code = "private static final class "+holder+" { static final "+prop.getType ()+" VALUE = "+prop.getOption ("lazy")+"; }\n"
+					+ Modifier.toString (modifiers)+" "+prop.getType ()+" get"+upper (prop.getName ())+" () { return "+holder+".VALUE; }\n";
+				members.addAll (members (code, last, col));
+				parent.setEndLine (last+code.split ("\n").length+1);
+				members.remove (prop);
+				continue;
+			}
+
+			// Static read only properties are a static final field, which the JIT treats as a constant
+			if (prop.hasOption ("readonly") && prop.isStatic ())
+			{
+				String constant = "_"+prop.getName ();
+				int modifiers = prop.getGet ().getModifiers () | prop.getSet ().getModifiers ();
+				if (!ModifierSet.isPrivate (modifiers) && !ModifierSet.isProtected (modifiers))
+					modifiers = ModifierSet.addModifier (modifiers, Modifier.PUBLIC);
+				String code = "private static final "+prop.getType ()+" "+constant+" = "+prop.getDefault ()+";\n"
+					+ Modifier.toString (modifiers)+" "+prop.getType ()+" get"+upper (prop.getName ())+" () { return "+constant+"; }\n";
+				members.addAll (members (code, last, col));
+				parent.setEndLine (last+code.split ("\n").length+1);
+				members.remove (prop);
+				continue;
+			}
+
 			// Field to back the property. Name of the property prefixed with _
 			List<VariableDeclarator> variables = new LinkedList<> ();
 			Expression defaultVal = prop.getDefault ();
 			if (defaultVal != null)
 				defaultVal.setBeginColumn (0);
 			variables.add (new VariableDeclarator (new VariableDeclaratorId ("_"+prop.getName ()), defaultVal));
-			FieldDeclaration field = new FieldDeclaration (Modifier.PRIVATE, prop.getType (), variables);
+			// Read only properties are never written after construction, they have no setter and no observers
+			boolean readonly = prop.hasOption ("readonly");
+			FieldDeclaration field = new FieldDeclaration (readonly ? Modifier.PRIVATE | Modifier.FINAL : Modifier.PRIVATE, prop.getType (), variables);
 			field.setBeginLine (++last);
 			field.setBeginColumn (col);
 
-			// Observer field
+			// Observer field, primitives get their own observer so values are not boxed
 			variables = new LinkedList<> ();
-			List<Type> typeArgs = new LinkedList ();
-			switch (prop.getType ().toString ())
+			variables.add (new VariableDeclarator (new VariableDeclaratorId (prop.getName ()+"Observer")));
+			ClassOrInterfaceType type = new ClassOrInterfaceType (PropertyObserverSource.getObserver (prop.getType ().toString ()));
+			if (!(prop.getType () instanceof PrimitiveType))
 			{
-				case "boolean":
-					typeArgs.add (new ClassOrInterfaceType ("Boolean"));
-					break;
-				case "char":
-					typeArgs.add (new ClassOrInterfaceType ("Character"));
-					break;
-				case "byte":
-					typeArgs.add (new ClassOrInterfaceType ("Byte"));
-					break;
-				case "short":
-					typeArgs.add (new ClassOrInterfaceType ("Short"));
-					break;
-				case "int":
-					typeArgs.add (new ClassOrInterfaceType ("Integer"));
-					break;
-				case "long":
-					typeArgs.add (new ClassOrInterfaceType ("Long"));
-					break;
-				case "float":
-					typeArgs.add (new ClassOrInterfaceType ("Float"));
-					break;
-				case "double":
-					typeArgs.add (new ClassOrInterfaceType ("Double"));
-					break;
-				default:
-					typeArgs.add (prop.getType ());
-					break;
+				List<Type> typeArgs = new LinkedList<> ();
+				typeArgs.add (prop.getType ());
+				type.setTypeArgs (typeArgs);
 			}
-			variables.add (new VariableDeclarator (new VariableDeclaratorId (prop.getName ()+"Observer")));
-			ClassOrInterfaceType type = new ClassOrInterfaceType ("PropertyObserver");
-			type.setTypeArgs (typeArgs);
 			FieldDeclaration observer = new FieldDeclaration (Modifier.PUBLIC, type, variables);
 			observer.setBeginLine (++last);
 			observer.setBeginColumn (col);
 
-			last++;
+			// Any number of observers more, kept in an array that is replaced as a whole
+			String name = prop.getName ();
+			String upper = upper (name);
+			String array = "_"+name+"Observers";
 
-			MethodDeclaration set = prop.getSet ();
-			set.setBeginLine (++last);
-			if (set.getModifiers () == 0)
-				set.setModifiers (Modifier.PUBLIC);
+			// Weak observers are wrapped, removing null also drops the ones that were collected
+			String element = type.toString ();
+			String raw = PropertyObserverSource.getObserver (prop.getType ().toString ());
+			String added = "observer";
+			String remove = "remove";
+			if (prop.hasOption ("weak"))
+			{
+				element = "java.lang.ref.WeakReference<"+type+">";
+				raw = "java.lang.ref.WeakReference";
+				added = "new "+element+" (observer)";
+				remove = "removeWeak";
+			}
 
-			// Default setter
-			if (set.getBody () == null)
+			int ordinal = ordinals.getOrDefault (prop, -1);
+			String code = "private volatile "+element+"[] "+array+";\n";
+			if (ordinal >= 0)
 			{
-				List<Statement> stmts = new LinkedList<> ();
+				// The table is copied on write like the arrays, it is only allocated once an observer is added
+				String next = "next["+ordinal+"] = com.idioticdev.javagrande.PropertyObservers.";
+				String current = "("+element+"[]) next["+ordinal+"]";
+				code = "";
+				if (tabled.put (parent, true) == null)
+					code = "private volatile Object[] _observerTable;\n"
+						+ (isStatic (parent) ? rawtypes (parent.getName (), self (parent))
+						+ "private static final java.util.concurrent.atomic.AtomicReferenceFieldUpdater<"+parent.getName ()+", Object[]> _OBSERVER_TABLE\n"
+						+ "	= java.util.concurrent.atomic.AtomicReferenceFieldUpdater.newUpdater ("+parent.getName ()+".class, Object[].class, \"_observerTable\");\n" : "");
+				if (isStatic (parent))
+					code += "public void add"+upper+"Observer ("+type+" observer)\n"
+						+ "{\n"
+						+ "	Object[] table, next;\n"
+						+ "	do {\n"
+						+ "		table = _observerTable;\n"
+						+ "		next = table != null ? table.clone () : new Object["+tables.get (parent)+"];\n"
+						+ "		"+next+"add ("+current+", "+added+", "+raw+".class);\n"
+						+ "	} while (!_OBSERVER_TABLE.compareAndSet (this, table, next));\n"
+						+ "}\n"
+						+ "public void remove"+upper+"Observer ("+type+" observer)\n"
+						+ "{\n"
+						+ "	Object[] table, next;\n"
+						+ "	do {\n"
+						+ "		table = _observerTable;\n"
+						+ "		if (table == null) return;\n"
+						+ "		next = table.clone ();\n"
+						+ "		"+next+remove+" ("+current+", observer);\n"
+						+ "	} while (!_OBSERVER_TABLE.compareAndSet (this, table, next));\n"
+						+ "}\n";
+				else
+					code += "public synchronized void add"+upper+"Observer ("+type+" observer)\n"
+						+ "{\n"
+						+ "	Object[] next = _observerTable != null ? _observerTable.clone () : new Object["+tables.get (parent)+"];\n"
+						+ "	"+next+"add ("+current+", "+added+", "+raw+".class);\n"
+						+ "	_observerTable = next;\n"
+						+ "}\n"
+						+ "public synchronized void remove"+upper+"Observer ("+type+" observer)\n"
+						+ "{\n"
+						+ "	if (_observerTable == null) return;\n"
+						+ "	Object[] next = _observerTable.clone ();\n"
+						+ "	"+next+remove+" ("+current+", observer);\n"
+						+ "	_observerTable = next;\n"
+						+ "}\n";
+			}
+			else if (isStatic (parent))
+			{
+				// Lock free, the array is swapped with a compare and set
+				String updater = "_"+name.toUpperCase ()+"_OBSERVERS";
+				code += rawtypes (parent.getName ()+raw, self (parent)+element)
+					+ "private static final java.util.concurrent.atomic.AtomicReferenceFieldUpdater<"+parent.getName ()+", "+raw+"[]> "+updater+"\n"
+					+ "	= java.util.concurrent.atomic.AtomicReferenceFieldUpdater.newUpdater ("+parent.getName ()+".class, "+raw+"[].class, \""+array+"\");\n"
+					+ "public void add"+upper+"Observer ("+type+" observer)\n"
+					+ "{\n"
+					+ "	"+element+"[] observers;\n"
+					+ "	do observers = "+array+";\n"
+					+ "	while (!"+updater+".compareAndSet (this, observers, com.idioticdev.javagrande.PropertyObservers.add (observers, "+added+", "+raw+".class)));\n"
+					+ "}\n"
+					+ "public void remove"+upper+"Observer ("+type+" observer)\n"
+					+ "{\n"
+					+ "	"+element+"[] observers;\n"
+					+ "	do observers = "+array+";\n"
+					+ "	while (!"+updater+".compareAndSet (this, observers, com.idioticdev.javagrande.PropertyObservers."+remove+" (observers, observer)));\n"
+					+ "}\n";
+			}
+			else
+			{
+				// Inner classes can not hold the static updater, writers take turns instead
+				code += "public void add"+upper+"Observer ("+type+" observer)\n"
+					+ "{\n"
+					+ "	synchronized (this) { "+array+" = com.idioticdev.javagrande.PropertyObservers.add ("+array+", "+added+", "+raw+".class); }\n"
+					+ "}\n"
+					+ "public void remove"+upper+"Observer ("+type+" observer)\n"
+					+ "{\n"
+					+ "	synchronized (this) { "+array+" = com.idioticdev.javagrande.PropertyObservers."+remove+" ("+array+", observer); }\n"
+					+ "}\n";
+			}
 
-				// Nodify observer
-				BinaryExpr condition = new BinaryExpr (new NameExpr (prop.getName ()+"Observer"), new NullLiteralExpr (), BinaryExpr.Operator.notEquals);
-				List<Expression> args = new LinkedList<> ();
-				args.add (new NameExpr ("_"+prop.getName ()));
-				args.add (new NameExpr ("value"));
-				ExpressionStmt thenStmt = new ExpressionStmt (new MethodCallExpr(new NameExpr (prop.getName ()+"Observer"), "changed", args));
-				Statement stmt = new IfStmt (condition, thenStmt, null);
-				stmt.setBeginColumn (col+4);
-				stmts.add (stmt);
+			// Observers of every instance. Changing them relinks the call site, which readers treat as a constant
+			if (prop.hasOption ("global"))
+			{
+				String site = "_"+name.toUpperCase ()+"_GLOBAL";
+				String global = global (prop, parent, false);
+				String observers = "("+global (prop, parent, true)+"[]) com.idioticdev.javagrande.PropertyObservers.get ("+site+")";
+				code += "private static final java.lang.invoke.MutableCallSite "+site+"_SITE = com.idioticdev.javagrande.PropertyObservers.site ();\n"
+					+ "private static final java.lang.invoke.MethodHandle "+site+" = "+site+"_SITE.dynamicInvoker ();\n"
+					+ "public static void addGlobal"+upper+"Observer ("+global+" observer)\n"
+					+ "{\n"
+					+ "	synchronized ("+site+"_SITE) { com.idioticdev.javagrande.PropertyObservers.set ("+site+"_SITE, com.idioticdev.javagrande.PropertyObservers.add ("
+					+ observers+", observer, com.idioticdev.javagrande.Global"+PropertyObserverSource.getObserver (prop.getType ().toString ())+".class)); }\n"
+					+ "}\n"
+					+ "public static void removeGlobal"+upper+"Observer ("+global+" observer)\n"
+					+ "{\n"
+					+ "	synchronized ("+site+"_SITE) { com.idioticdev.javagrande.PropertyObservers.set ("+site+"_SITE, com.idioticdev.javagrande.PropertyObservers.remove ("
+					+ observers+", observer)); }\n"
+					+ "}\n";
+			}
 
-				// Set backing field
-				FieldAccessExpr target = new FieldAccessExpr(new ThisExpr (null), "_"+prop.getName ());
-				stmt = new ExpressionStmt(new AssignExpr(target, new NameExpr ("value"), AssignExpr.Operator.assign));
-				stmt.setBeginColumn (col+4);
-				stmts.add (stmt);
-				set.setBody (new BlockStmt (stmts));
+			code += notifier (prop, type, parent, ordinal);
+			if (readonly)
+				code = "";
+
+			// The lane and its queue are only made once there is a change to deliver, most objects never have observers
+			if (prop.hasOption ("async"))
+			{
+				String lane = "com.idioticdev.javagrande.PropertyDispatcher.Lane";
+				code += "private volatile "+lane+" _"+name+"Lane;\n"
+					+ "private "+lane+" _"+name+"Lane ()\n"
+					+ "{\n"
+					+ "	"+lane+" lane = _"+name+"Lane;\n"
+					+ "	if (lane != null) return lane;\n"
+					+ "	synchronized (this) {\n"
+					+ "		if (_"+name+"Lane == null) _"+name+"Lane = new "+lane+" ("+(prop.getOption ("async") != null ? prop.getOption ("async") : "")+");\n"
+					+ "		return _"+name+"Lane;\n"
+					+ "	}\n"
+					+ "}\n";
 			}
 
-			BlockStmt body = set.getBody ();
-			for (Statement stmt : body.getStmts ())
-				stmt.setBeginLine (++last);
+			// Initialized on first access, set when the value is loaded or written
+			String init = "";
+			String loaded = "";
+			if (prop.hasOption ("lazy"))
+			{
+				String flag = "_"+name+"Loaded";
+				if (prop.hasOption ("threadsafe"))
+				{
+					// Double checked locking, the volatile flag publishes the value
+					code += "private volatile boolean "+flag+";\n";
+					init = "if (!"+flag+") synchronized (this) { if (!"+flag+") { _"+name+" = "+prop.getOption ("lazy")+"; "+flag+" = true; } }\n";
+				}
+				else
+				{
+					code += "private boolean "+flag+";\n";
+					init = "if (!"+flag+") { _"+name+" = "+prop.getOption ("lazy")+"; "+flag+" = true; }\n";
+					loaded = flag+" = true;\n";
+				}
+			}
 
-			body.setEndLine (++last);
-			body.setBeginColumn (col);
-			set.setEndLine (last++);
+			// Cached until a property it reads is set, observers hear of the new value once it is recomputed
+			String compute = prop.getOption ("compute");
+			String invalidate = invalidates.getOrDefault (prop, "");
+
+			if (described.containsKey (parent))
+				code += table (parent, described.remove (parent));
+			if (encoded.containsKey (parent))
+				code += codec (parent, encoded.remove (parent));
+			if (columnar.containsKey (parent))
+				code += columns (parent, columnar.remove (parent));
+
+			// Counters are striped over padded cells, the getter sums them and observers hear of a sample of the counts
+			boolean counter = prop.hasOption ("increment");
+			if (counter)
+			{
+				String counted = prop.getType ().toString ();
+				String narrow = counted.equals ("int") ? "(int) " : "";
+				String sample = prop.getOption ("increment") != null ? prop.getOption ("increment") : "1024";
+				code += "private final com.idioticdev.javagrande.PropertyCounter _"+name+" = new com.idioticdev.javagrande.PropertyCounter ("
+					+ (prop.getDefault () != null ? prop.getDefault () : "0")+", "+sample+");\n"
+					+ "public void increment"+upper+" () { add"+upper+" (1); }\n"
+					+ "public void add"+upper+" ("+counted+" n)\n"
+					+ "{\n"
+					+ "	boolean _sampled = _"+name+".add (n);\n"
+					+ invalidate
+					+ "	if (!_sampled) return;\n"
+					+ "	"+counted+" _value = "+narrow+"_"+name+".sum ();\n"
+					+ "	_notify"+upper+" (_value-n, _value);\n"
+					+ "}\n"
+					+ "public "+counted+" reset"+upper+" ()\n"
+					+ "{\n"
+					+ "	"+counted+" _old = "+narrow+"_"+name+".sumThenReset ();\n"
+					+ invalidate
+					+ "	_notify"+upper+" (_old, "+narrow+"_"+name+".getInitial ());\n"
+					+ "	return _old;\n"
+					+ "}\n";
+			}
+
+			// Objects are handles to a record of the class's store, the default is written once it is allocated
+			String load = "this._"+name;
+			String store = "this._"+name+" = value;";
+			if (offsets.containsKey (prop))
+			{
+				String primitive = prop.getType ().toString ();
+				String method = primitive.equals ("boolean") ? "Byte" : upper (primitive);
+				String at = "_slot, "+offsets.get (prop);
+				load = "_STORE.get"+method+" ("+at+")"+(primitive.equals ("boolean") ? " != 0" : "");
+				store = "_STORE.put"+method+" ("+at+", "+(primitive.equals ("boolean") ? "(byte) (value ? 1 : 0)" : "value")+");";
+				// The record allocated is freed once, when the object is released, then the object has no slot
+				if (stored.put (parent, true) == null)
+					code += "private static final com.idioticdev.javagrande.PropertyStore _STORE = new com.idioticdev.javagrande.PropertyStore ("+((records.get (parent)+7) / 8*8)+");\n"
+						+ "private long _record = _STORE.allocate ();\n"
+						+ "private long _slot = _record;\n"
+						+ "public long storageSlot () { return _slot; }\n"
+						+ "public void moveTo (long slot) { _slot = slot; }\n"
+						+ "public void releaseStorage ()\n"
+						+ "{\n"
+						+ "	if (_record < 0) return;\n"
+						+ "	_STORE.free (_record);\n"
+						+ "	_record = _slot = -1;\n"
+						+ "}\n";
+				if (prop.getDefault () != null)
+					code += "{ "+store.replace ("value", "("+primitive+") ("+prop.getDefault ()+")")+" }\n";
+			}
+
+			// Objects journaling a property get an id, once per class
+			if (prop.hasOption ("journal") && journaled.put (parent, true) == null)
+				code += "private final int _journalId = com.idioticdev.javagrande.PropertyJournal.nextId ();\n";
+
+			// Writes set the property's bit, a long holds the mask of up to 64 properties
+			String written = invalidate;
+			if (bits.containsKey (prop))
+			{
+				int bit = bits.get (prop);
+				int count = masks.get (parent);
+				String mask = count > 64 ? "_dirty["+(bit >>> 6)+"]" : "_dirty";
+				written += "	"+mask+" |= 1L << "+(bit & 63)+";\n";
+				code += "public static final int DIRTY_"+name.toUpperCase ()+" = "+bit+";\n";
+				if (tracked.put (parent, true) == null)
+				{
+					if (count > 64)
+						code += "private final long[] _dirty = new long["+((count+63) >>> 6)+"];\n"
+							+ "public long[] dirtyMask () { return _dirty.clone (); }\n"
+							+ "public boolean isDirty (int property) { return (_dirty[property >>> 6] & 1L << property) != 0; }\n"
+							+ "public void clearDirty () { java.util.Arrays.fill (_dirty, 0L); }\n"
+							+ "public java.util.PrimitiveIterator.OfInt dirtyProperties () { return java.util.BitSet.valueOf (_dirty).stream ().iterator (); }\n";
+					else
+						code += "private long _dirty;\n"
+							+ "public long dirtyMask () { return _dirty; }\n"
+							+ "public boolean isDirty (int property) { return (_dirty & 1L << property) != 0; }\n"
+							+ "public void clearDirty () { _dirty = 0L; }\n"
+							+ "public java.util.PrimitiveIterator.OfInt dirtyProperties () { return java.util.BitSet.valueOf (new long[] { _dirty }).stream ().iterator (); }\n";
+				}
+			}
+
+			if (compute != null)
+				code += "private boolean _"+name+"Dirty = true;\n"
+					+ "private boolean _"+name+"Computed;\n"
+					+ "private void _invalidate"+upper+" ()\n"
+					+ "{\n"
+					+ "	if (_"+name+"Dirty) return;\n"
+					+ "	_"+name+"Dirty = true;\n"
+					+ invalidate
+					+ "}\n";
+
+			// Field accessed through a VarHandle with the chosen access mode
+			String access = prop.getOption ("access");
+			String handle = "_"+name.toUpperCase ()+"_HANDLE";
+			if (access != null)
+			{
+				// Inner classes can not have static members, each instance looks the handle up instead
+				String scope = isStatic (parent) ? "static " : "";
+				code += "private "+scope+"final java.lang.invoke.VarHandle "+handle+";\n"
+					+ scope+"{\n"
+					+ "	try { "+handle+" = java.lang.invoke.MethodHandles.lookup ().findVarHandle ("+parent.getName ()+".class, \"_"+name+"\", "+erasure (prop.getType (), parent)+".class); }\n"
+					+ "	catch (ReflectiveOperationException e) { throw new IllegalStateException (e); }\n"
+					+ "}\n"
+					+ "public boolean compareAndSet"+upper+" ("+prop.getType ()+" expected, "+prop.getType ()+" value)\n"
+					+ "{\n"
+					+ "	"+init
+					+ "	if (!"+handle+".compareAndSet (this, expected, value)) return false;\n"
+					+ "	"+journal (prop, parent, "expected")
+					+ written
+					+ "	_notify"+upper+" (expected, value);\n"
+					+ "	return true;\n"
+					+ "}\n"
+					+ "public "+prop.getType ()+" getAndSet"+upper+" ("+prop.getType ()+" value)\n"
+					+ "{\n"
+					+ "	"+init
+					+ "	"+prop.getType ()+" _old = ("+prop.getType ()+") "+handle+".getAndSet (this, value);\n"
+					+ "	"+journal (prop, parent, "_old")
+					+ written
+					+ "	_notify"+upper+" (_old, value);\n"
+					+ "	return _old;\n"
+					+ "}\n";
+			}
+
+			List<BodyDeclaration> generated = members (code, last, col);
+			last += code.split ("\n").length;
+
+			last++;
+
+			// Computed properties are read only
+			MethodDeclaration set = prop.getSet ();
+			if (compute == null && !readonly && !counter)
+			{
+				set.setBeginLine (++last);
+				if (set.getModifiers () == 0)
+					set.setModifiers (Modifier.PUBLIC);
+
+				// Default setter
+				if (set.getBody () == null)
+				{
+					String setter = journal (prop, parent, "_"+name)+"_notify"+upper+" (_"+name+", value);\nthis._"+name+" = value;";
+					if (offsets.containsKey (prop))
+						setter = prop.getType ()+" _old = "+load+";\n"
+							+ "_notify"+upper+" (_old, value);\n"
+							+ store;
+
+					// Observers are notified once the value is written, with the value it replaced even when writers race
+					if (access != null)
+						setter = prop.getType ()+" _old = ("+prop.getType ()+") "+handle+"."+SWAPS.get (access)+" (this, value);\n"
+							+ journal (prop, parent, "_old")
+							+ "_notify"+upper+" (_old, value);";
+					setter += "\n"+written;
+
+					List<Statement> stmts = statements (setter);
+					for (Statement stmt : stmts)
+						stmt.setBeginColumn (col+4);
+					set.setBody (new BlockStmt (stmts));
+				}
+				else
+					prepend (set.getBody (), journal (prop, parent, "_"+name)+written, col+4);
+
+				// Thread safe ones are initialized first like in the getter, only that takes the lock
+				BlockStmt body = set.getBody ();
+				prepend (body, prop.hasOption ("threadsafe") ? init : loaded, col+4);
+				for (Statement stmt : body.getStmts ())
+					stmt.setBeginLine (++last);
+
+				body.setEndLine (++last);
+				body.setBeginColumn (col);
+				set.setEndLine (last++);
+			}
 
 			MethodDeclaration get = prop.getGet ();
 			get.setBeginLine (++last);
@@ -200,12 +671,28 @@ public class CodeVisitor<T> extends VoidVisitorAdapter<T>
 			{
 				List<Statement> stmts = new LinkedList<> ();
 				Statement stmt = new ReturnStmt (new FieldAccessExpr(new ThisExpr (null), "_"+prop.getName ()));
-				stmt.setBeginColumn (col+4);
+				if (access != null)
+					stmt = statements ("return ("+prop.getType ()+") "+handle+"."+GETTERS.get (access)+" (this);").get (0);
+				if (offsets.containsKey (prop))
+					stmt = statements ("return "+load+";").get (0);
+				if (counter)
+					stmt = statements ("return "+(prop.getType ().toString ().equals ("int") ? "(int) " : "")+"this._"+name+".sum ();").get (0);
+				if (compute != null)
+					stmts.addAll (statements ("if (_"+name+"Dirty) {\n"
+						+ "	"+prop.getType ()+" _old = this._"+name+";\n"
+						+ "	this._"+name+" = "+compute+";\n"
+						+ "	_"+name+"Dirty = false;\n"
+						+ "	if (_"+name+"Computed) _notify"+upper+" (_old, this._"+name+");\n"
+						+ "	_"+name+"Computed = true;\n"
+						+ "}\n"));
 				stmts.add (stmt);
+				for (Statement s : stmts)
+					s.setBeginColumn (col+4);
 				get.setBody (new BlockStmt (stmts));
 			}
 
-			body = get.getBody ();
+			BlockStmt body = get.getBody ();
+			prepend (body, init, col+4);
 			for (Statement stmt : body.getStmts ())
 				stmt.setBeginLine (++last);
 
@@ -216,9 +703,13 @@ public class CodeVisitor<T> extends VoidVisitorAdapter<T>
 			parent.setEndLine (++last);
 
 			// Add field, getter, and setter to class body
-			members.add (field);
-			members.add (observer);
-			members.add (set);
+			if (!offsets.containsKey (prop) && !counter)
+				members.add (field);
+			if (ordinal < 0 && !readonly)
+				members.add (observer);
+			members.addAll (generated);
+			if (compute == null && !readonly && !counter)
+				members.add (set);
 			members.add (get);
 
 			// Remove prepossessed property from the AST
@@ -226,6 +717,1017 @@ public class CodeVisitor<T> extends VoidVisitorAdapter<T>
 		}
 	}
 
+	/**
+	 * Rewrites this.name in the class declaring the property to use its field directly where the default accessor
+	 * would do nothing more. Reads become this._name and assignment statements store the field after notifying,
+	 * as the setter does. Only done when the accessor can not be overridden, the class is final or the accessor is
+	 * private or final. Read only properties assigned in a constructor are assigned their field.
+	 * Statements updating the property, this.name++ or this.name += n, always call the getter and setter.
+	 * Anything else is left for {@link #resolveError} to turn into accessor calls.
+	 *
+	 * @param invalidates Computed properties to invalidate for each property that is read by one
+	 */
+	private void inline (Map<PropertyDeclaration, String> invalidates)
+	{
+		for (Iterator<FieldAccessExpr> it = fields.iterator (); it.hasNext (); )
+		{
+			FieldAccessExpr field = it.next ();
+			if (!(field.getScope () instanceof ThisExpr) || ((ThisExpr) field.getScope ()).getClassExpr () != null)
+				continue;
+
+			PropertyDeclaration prop = null;
+			TypeDeclaration type = enclosing (field);
+			for (PropertyDeclaration candidate : props)
+				if (candidate.getParentNode () == type && candidate.getName ().equals (field.getField ()) && !candidate.isStatic ())
+					prop = candidate;
+			if (prop == null || declares (type, field.getField ()))
+				continue;
+
+			String name = prop.getName ();
+			Node parent = field.getParentNode ();
+			Node replaced = field;
+			Node replacement;
+			String operator = operator (field);
+			if (operator != null)
+			{
+				// The value is read and written back through the accessors, never the field alone
+				if (!(parent.getParentNode () instanceof ExpressionStmt) || prop.hasOption ("readonly") || prop.hasOption ("compute")
+					|| prop.hasOption ("increment"))
+					continue;
+
+				Expression update = parent instanceof AssignExpr ? ((AssignExpr) parent).getValue () : new IntegerLiteralExpr ("1");
+				replaced = parent;
+				parent = replaced.getParentNode ();
+				MethodCallExpr set = (MethodCallExpr) ((ExpressionStmt) statements ("this.set"+upper (name)+" (("+prop.getType ()+") "
+					+ "(this.get"+upper (name)+" () "+operator+" _value));").get (0)).getExpression ();
+				BinaryExpr value = (BinaryExpr) ((EnclosedExpr) ((CastExpr) set.getArgs ().get (0)).getExpr ()).getInner ();
+				value.setRight (new EnclosedExpr (update));
+				replacement = set;
+			}
+			else if (parent instanceof AssignExpr && ((AssignExpr) parent).getTarget () == field && prop.hasOption ("readonly"))
+			{
+				// Read only properties are assigned their final field in constructors
+				if (!constructing (field))
+					continue;
+
+				replacement = new FieldAccessExpr (field.getBeginLine (), field.getBeginColumn (), field.getEndLine (), field.getEndColumn (),
+					field.getScope (), field.getTypeArgs (), "_"+name);
+			}
+			else if (parent instanceof AssignExpr && ((AssignExpr) parent).getTarget () == field)
+			{
+				// Only whole statements, the setter's value is not an expression
+				AssignExpr ae = (AssignExpr) parent;
+				if (ae.getOperator () != AssignExpr.Operator.assign || !(ae.getParentNode () instanceof ExpressionStmt)
+					|| ae.getParentNode ().getParentNode () instanceof LambdaExpr || !plainSet (prop, invalidates))
+					continue;
+
+				replaced = ae.getParentNode ();
+				parent = replaced.getParentNode ();
+				BlockStmt block = new BlockStmt (statements (prop.getType ()+" _"+name+"Value = null;\n"
+					+ "_notify"+upper (name)+" (this._"+name+", _"+name+"Value);\n"
+					+ "this._"+name+" = _"+name+"Value;"));
+				VariableDeclarationExpr value = (VariableDeclarationExpr) ((ExpressionStmt) block.getStmts ().get (0)).getExpression ();
+				value.getVars ().get (0).setInit (ae.getValue ());
+				replacement = block;
+			}
+			else
+			{
+				if (!plainGet (prop))
+					continue;
+
+				replacement = new FieldAccessExpr (field.getBeginLine (), field.getBeginColumn (), field.getEndLine (), field.getEndColumn (),
+					field.getScope (), field.getTypeArgs (), "_"+name);
+			}
+
+			replacement.setBeginLine (replaced.getBeginLine ());
+			replacement.setBeginColumn (replaced.getBeginColumn ());
+			try
+			{
+				replaceValue (parent, replaced, replacement);
+				replacement.setParentNode (parent);
+			}
+			catch (IllegalAccessException e)
+			{
+				System.out.println (e);
+				continue;
+			}
+
+			it.remove ();
+		}
+	}
+
+	/**
+	 * @return Binary operator of the increment, decrement or compound assignment writing the field, null for other uses
+	 */
+	private static String operator (FieldAccessExpr field)
+	{
+		Node parent = field.getParentNode ();
+		if (parent instanceof UnaryExpr)
+			switch (((UnaryExpr) parent).getOperator ())
+			{
+				case preIncrement:
+				case posIncrement:
+					return "+";
+				case preDecrement:
+				case posDecrement:
+					return "-";
+				default:
+					return null;
+			}
+
+		if (!(parent instanceof AssignExpr) || ((AssignExpr) parent).getTarget () != field)
+			return null;
+
+		switch (((AssignExpr) parent).getOperator ())
+		{
+			case plus:
+				return "+";
+			case minus:
+				return "-";
+			case star:
+				return "*";
+			case slash:
+				return "/";
+			case rem:
+				return "%";
+			case and:
+				return "&";
+			case or:
+				return "|";
+			case xor:
+				return "^";
+			case lShift:
+				return "<<";
+			case rSignedShift:
+				return ">>";
+			case rUnsignedShift:
+				return ">>>";
+			default:
+				return null;
+		}
+	}
+
+	/**
+	 * @return If the default getter of the property only returns the field and can not be overridden
+	 */
+	private static boolean plainGet (PropertyDeclaration prop)
+	{
+		return prop.getGet ().getBody () == null && !prop.hasOption ("lazy") && !prop.hasOption ("access") && !prop.hasOption ("compute")
+			&& !prop.hasOption ("offheap") && !prop.hasOption ("increment") && !overridable (prop.getGet ());
+	}
+
+	/**
+	 * @return If the default setter of the property only notifies and stores the field and can not be overridden
+	 */
+	private static boolean plainSet (PropertyDeclaration prop, Map<PropertyDeclaration, String> invalidates)
+	{
+		for (String option : prop.getOptions ().keySet ())
+			if (!option.equals ("changed") && !option.equals ("weak") && !option.equals ("async") && !option.equals ("compact") && !option.equals ("global"))
+				return false;
+
+		return prop.getSet ().getBody () == null && !invalidates.containsKey (prop) && !overridable (prop.getSet ());
+	}
+
+	/**
+	 * @return If a subclass could override the accessor of a property
+	 */
+	private static boolean overridable (MethodDeclaration accessor)
+	{
+		TypeDeclaration type = (TypeDeclaration) accessor.getParentNode ().getParentNode ();
+		return !(type instanceof EnumDeclaration) && !ModifierSet.isFinal (type.getModifiers ())
+			&& !ModifierSet.isPrivate (accessor.getModifiers ()) && !ModifierSet.isFinal (accessor.getModifiers ());
+	}
+
+	/**
+	 * @return Type whose this a node refers to, null inside anonymous classes
+	 */
+	private static TypeDeclaration enclosing (Node node)
+	{
+		for (Node parent = node.getParentNode (); parent != null; parent = parent.getParentNode ())
+		{
+			if (parent instanceof TypeDeclaration)
+				return (TypeDeclaration) parent;
+			if (parent instanceof ObjectCreationExpr && ((ObjectCreationExpr) parent).getAnonymousClassBody () != null)
+				return null;
+		}
+
+		return null;
+	}
+
+	/**
+	 * @return If the node is directly in a constructor and not in a lambda
+	 */
+	private static boolean constructing (Node node)
+	{
+		for (Node parent = node.getParentNode (); parent != null && !(parent instanceof TypeDeclaration); parent = parent.getParentNode ())
+		{
+			if (parent instanceof LambdaExpr)
+				return false;
+			if (parent instanceof ConstructorDeclaration)
+				return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * @return The writeTo or readFrom taking a ByteBuffer the type declares, the generated codec would clash with it, or null
+	 */
+	private static MethodDeclaration encodes (TypeDeclaration type)
+	{
+		for (BodyDeclaration member : type.getMembers ())
+			if (member instanceof MethodDeclaration)
+			{
+				MethodDeclaration method = (MethodDeclaration) member;
+				if ((method.getName ().equals ("writeTo") || method.getName ().equals ("readFrom")) && method.getParameters () != null
+					&& method.getParameters ().size () == 1 && method.getParameters ().get (0).getType ().toString ().matches ("(java\\.nio\\.)?ByteBuffer"))
+					return method;
+			}
+
+		return null;
+	}
+
+	/**
+	 * Checks a property with the codec option can be encoded by the codec of its class.
+	 * Without a codec of its own a reference property must be a string or an enum. Types declared in other files
+	 * are taken for enums, javac rejects them if they are not.
+	 *
+	 * @param prop Property to encode
+	 * @return Why the property can not be encoded or null if it can
+	 */
+	private String encodable (PropertyDeclaration prop)
+	{
+		TypeDeclaration parent = (TypeDeclaration) prop.getParentNode ();
+		if (encodes (parent) != null)
+			return parent.getName ()+" declares its own writeTo or readFrom, its properties can not have a codec";
+
+		// Superclasses in the same file are known, a final writeTo in them can not be overridden
+		List<TypeDeclaration> supers = new LinkedList<> ();
+		for (TypeDeclaration type = superclass (parent); type != null && !supers.contains (type); type = superclass (type))
+		{
+			MethodDeclaration method = encodes (type);
+			if (method != null && ModifierSet.isFinal (method.getModifiers ()))
+				return parent.getName ()+" inherits a final "+method.getName ()+" from "+type.getName ()+", its properties can not have a codec";
+			supers.add (type);
+		}
+
+		Type type = prop.getType ();
+		String name = type.toString ();
+		if (prop.getOption ("codec") != null || type instanceof PrimitiveType || name.matches ("(java\\.lang\\.)?String"))
+			return null;
+
+		TypeDeclaration declared = find (name);
+		if (name.contains ("[") || !erasure (type, parent).equals (name) || (declared != null && !(declared instanceof EnumDeclaration))
+			|| name.matches ("(java\\.lang\\.)?(Boolean|Byte|Character|Short|Integer|Long|Float|Double|Number|CharSequence|Object)"))
+			return "Only primitives, strings and enums have a codec, codec = expression gives the codec of "+name;
+
+		return null;
+	}
+
+	/**
+	 * @return The class the type extends if it is declared in this file, or null
+	 */
+	private TypeDeclaration superclass (TypeDeclaration type)
+	{
+		if (!extendsAny (type))
+			return null;
+
+		return find (((ClassOrInterfaceDeclaration) type).getExtends ().get (0).getName ());
+	}
+
+	/**
+	 * @return The type declared in this file with the simple name, nested ones included, or null
+	 */
+	private TypeDeclaration find (String name)
+	{
+		List<TypeDeclaration> types = new LinkedList<> ();
+		if (cu.getTypes () != null)
+			types.addAll (cu.getTypes ());
+		while (!types.isEmpty ())
+		{
+			TypeDeclaration type = types.remove (0);
+			if (type.getName ().equals (name))
+				return type;
+			if (type.getMembers () != null)
+				for (BodyDeclaration member : type.getMembers ())
+					if (member instanceof TypeDeclaration)
+						types.add ((TypeDeclaration) member);
+		}
+
+		return null;
+	}
+
+	/**
+	 * @return If the type declares a field with the name, hiding the property
+	 */
+	private static boolean declares (TypeDeclaration type, String name)
+	{
+		for (BodyDeclaration member : type.getMembers ())
+			if (member instanceof FieldDeclaration)
+				for (VariableDeclarator var : ((FieldDeclaration) member).getVariables ())
+					if (var.getId ().getName ().equals (name))
+						return true;
+
+		return false;
+	}
+
+	/**
+	 * Generates the methods notifying the observers of a property, _notifyName (old, value) and _flushName.
+	 * The field's observer is called first then the rest from a snapshot, observers added meanwhile see the next change.
+	 * Inside a {@code PropertyBatch} the change is deferred instead and _flushName delivers it when the batch ends,
+	 * old values are passed through the batch as bits so primitives are not boxed.
+	 * Async properties hand the observers to their {@code PropertyDispatcher.Lane} instead of calling them.
+	 * Global observers, added for every instance of the class, are called after those of the object.
+	 *
+	 * @param prop Property to notify for
+	 * @param type Type of the property's observers
+	 * @param parent Type declaring the property
+	 * @param ordinal Index of a compact property in the observer table, -1 for other properties
+	 * @return Methods, one statement per line
+	 */
+	private static String notifier (PropertyDeclaration prop, ClassOrInterfaceType type, TypeDeclaration parent, int ordinal)
+	{
+		String name = prop.getName ();
+		String upper = upper (name);
+		String element = type.toString ();
+		String single = name+"Observer";
+		String array = "_"+name+"Observers";
+		String loop = "	if (_observers != null) for ("+type+" _observer : _observers) _observer.changed (_old, value);\n";
+
+		// Collected weak observers are skipped, then dropped from the array
+		if (prop.hasOption ("weak"))
+		{
+			element = "java.lang.ref.WeakReference<"+type+">";
+			loop = "	if (_observers != null) {\n"
+				+ "		boolean _collected = false;\n"
+				+ "		for ("+element+" _reference : _observers) {\n"
+				+ "			"+type+" _observer = _reference.get ();\n"
+				+ "			if (_observer != null) _observer.changed (_old, value);\n"
+				+ "			else _collected = true;\n"
+				+ "		}\n"
+				+ "		if (_collected) remove"+upper+"Observer (null);\n"
+				+ "	}\n";
+		}
+
+		// Observers of every instance, the array is a constant of the call site so the check folds away while it is null
+		String global = "";
+		String globalLoop = "";
+		String globalSet = "";
+		String suppress = "";
+		if (prop.hasOption ("global"))
+		{
+			String observer = global (prop, parent, false);
+			global = "	"+observer+"[] _global = ("+observer+"[]) com.idioticdev.javagrande.PropertyObservers.get (_"+name.toUpperCase ()+"_GLOBAL);\n";
+			globalLoop = "	if (_global != null) for ("+observer+" _observer : _global) _observer.changed (this, _old, value);\n";
+			globalSet = " || _global != null";
+			suppress = "@SuppressWarnings (\"unchecked\")\n";
+		}
+
+		// Compact properties have no observer field, their observers are in the object's table
+		String table = "";
+		if (ordinal >= 0)
+		{
+			single = "null";
+			array = "("+element+"[]) _table["+ordinal+"]";
+			table = "	Object[] _table = _observerTable;\n"
+				+ "	if (_table == null) return;\n";
+			if (prop.hasOption ("global"))
+			{
+				array = "_table != null ? "+array+" : null";
+				table = "	Object[] _table = _observerTable;\n";
+			}
+		}
+
+		String notify = "	"+element+"[] _observers = "+array+";\n"
+			+ loop;
+		if (ordinal < 0)
+			notify = "	if ("+single+" != null) "+single+".changed (_old, value);\n"+notify;
+		notify += global+globalLoop;
+
+		// Observers taken now are called in order on the property's lane
+		if (prop.hasOption ("async"))
+			notify = "	"+type+" _single = "+single+";\n"
+				+ "	"+element+"[] _observers = "+array+";\n"
+				+ global
+				+ "	if (_single != null || _observers != null"+globalSet+") _"+name+"Lane ().submit (() -> {\n"
+				+ "		if (_single != null) _single.changed (_old, value);\n"
+				+ "	"+loop.replace ("\n	", "\n		")
+				+ "	"+globalLoop.replace ("\n	", "\n		")
+				+ "	});\n";
+
+		// Only when the value changed
+		if (prop.hasOption ("changed"))
+		{
+			String condition = "_old != value";
+			if ("equals".equals (prop.getOption ("changed")) && !(prop.getType () instanceof PrimitiveType))
+				condition = "!java.util.Objects.equals (_old, value)";
+			notify = "	if ("+condition+") {\n"+notify+"	}\n";
+		}
+
+		String primitive = prop.getType () instanceof PrimitiveType ? prop.getType ().toString () : null;
+		String bits = "0L";
+		String ref = "_old";
+		String decoded = "("+prop.getType ()+") _ref";
+		// The batch holds old references as objects, casting them back to a generic type is unchecked
+		String unchecked = "@SuppressWarnings (\"unchecked\")\n";
+		if (primitive != null)
+		{
+			unchecked = "";
+			bits = encode (prop.getType (), "_old");
+			ref = "null";
+			switch (primitive)
+			{
+				case "boolean":
+					decoded = "_bits != 0";
+					break;
+				case "float":
+					decoded = "Float.intBitsToFloat ((int) _bits)";
+					break;
+				case "double":
+					decoded = "Double.longBitsToDouble (_bits)";
+					break;
+				case "long":
+					decoded = "_bits";
+					break;
+				default:
+					decoded = "("+primitive+") _bits";
+					break;
+			}
+		}
+
+		return suppress
+			+ "private void _notify"+upper+" ("+prop.getType ()+" _old, "+prop.getType ()+" value)\n"
+			+ "{\n"
+			+ table
+			+ "	if (com.idioticdev.javagrande.PropertyBatch.defer (this, (_target, _bits, _ref) -> (("+self (parent)+") _target)._flush"+upper+" (_bits, _ref), "+bits+", "+ref+")) return;\n"
+			+ notify
+			+ "}\n"
+			+ unchecked
+			+ "private void _flush"+upper+" (long _bits, Object _ref)\n"
+			+ "{\n"
+			+ "	_notify"+upper+" ("+decoded+", "+(prop.hasOption ("offheap") || prop.hasOption ("increment") ? "get"+upper+" ()" : "this._"+name)+");\n"
+			+ "}\n";
+	}
+
+	/**
+	 * Type of the global observers of a property. Primitive properties have their own so values are not boxed.
+	 * Type arguments the static members can not refer to are wildcards.
+	 *
+	 * @param wildcard If the class of the property is also a wildcard, the type of the array holding any of them
+	 * @return Observer type, like GlobalIntPropertyObserver&lt;Item&gt; or GlobalPropertyObserver&lt;Item, List&lt;?&gt;&gt;
+	 */
+	private static String global (PropertyDeclaration prop, TypeDeclaration parent, boolean wildcard)
+	{
+		String source = wildcard ? "?" : self (parent);
+		String observer = "com.idioticdev.javagrande.Global"+PropertyObserverSource.getObserver (prop.getType ().toString ());
+		if (prop.getType () instanceof PrimitiveType)
+			return observer+"<"+source+">";
+
+		return observer+"<"+source+", "+(wildcard ? "?" : wildcard (prop.getType (), parent))+">";
+	}
+
+	/**
+	 * @return Name of the class with a wildcard for each of its type parameters, like Box&lt;?&gt;
+	 */
+	private static String self (TypeDeclaration parent)
+	{
+		if (!(parent instanceof ClassOrInterfaceDeclaration) || ((ClassOrInterfaceDeclaration) parent).getTypeParameters () == null
+			|| ((ClassOrInterfaceDeclaration) parent).getTypeParameters ().isEmpty ())
+			return parent.getName ();
+
+		return parent.getName ()+"<"+wildcards (((ClassOrInterfaceDeclaration) parent).getTypeParameters ().size ())+">";
+	}
+
+	/**
+	 * @return Erasure of the type with a wildcard for each of its type arguments, like List&lt;?&gt; for List&lt;String&gt;
+	 */
+	private static String wildcard (Type type, TypeDeclaration parent)
+	{
+		String erased = erasure (type, parent);
+		Type element = type instanceof ReferenceType ? ((ReferenceType) type).getType () : type;
+		if (!(element instanceof ClassOrInterfaceType) || ((ClassOrInterfaceType) element).getTypeArgs () == null
+			|| ((ClassOrInterfaceType) element).getTypeArgs ().isEmpty ())
+			return erased;
+
+		String base = erased.replace ("[]", "").trim ();
+		return base+"<"+wildcards (((ClassOrInterfaceType) element).getTypeArgs ().size ())+">"+erased.substring (base.length ());
+	}
+
+	private static String wildcards (int count)
+	{
+		String wildcards = "?";
+		for (int i = 1; i < count; i++)
+			wildcards += ", ?";
+
+		return wildcards;
+	}
+
+	/**
+	 * Updaters are made from class literals, so their types are raw when the class or the observers are generic.
+	 *
+	 * @param raw Types as the updater has them
+	 * @param full Types with their type arguments
+	 * @return Annotation suppressing the raw type warnings if the types differ, else nothing
+	 */
+	private static String rawtypes (String raw, String full)
+	{
+		return raw.equals (full) ? "" : "@SuppressWarnings (\"rawtypes\")\n";
+	}
+
+	/**
+	 * Generates the PROPERTIES table of a class, describing its properties with their getters and setters.
+	 *
+	 * @param parent Class declaring the properties
+	 * @param props Instance properties of the class in the order they are declared
+	 * @return Field, one descriptor per line
+	 */
+	private static String table (TypeDeclaration parent, List<PropertyDeclaration> props)
+	{
+		String type = parent.getName ();
+
+		// Static fields can not refer to the type parameters of a generic class, its table uses the raw class and erasures
+		boolean generic = !self (parent).equals (type);
+		String code = (generic ? "@SuppressWarnings ({\"rawtypes\", \"unchecked\"})\n" : "")
+			+ "public static final com.idioticdev.javagrande.PropertyTable<"+type+"> PROPERTIES = new com.idioticdev.javagrande.PropertyTable<"+type+"> (java.util.Arrays.asList (\n";
+		int ordinal = 0;
+		for (PropertyDeclaration prop : props)
+		{
+			String erased = erasure (prop.getType (), parent);
+			String upper = upper (prop.getName ());
+			String value = generic ? erased : prop.getType ().toString ();
+			code += "	new com.idioticdev.javagrande.PropertyDescriptor<"+type+", "+PropertyObserverSource.box (value)+"> (\""+prop.getName ()+"\", "
+				+ erased+".class, "+ordinal+", "+type+"::get"+upper+", "+(prop.hasOption ("compute") || prop.hasOption ("readonly") || prop.hasOption ("increment") ? "null" : type+"::set"+upper)+")"
+				+ (++ordinal < props.size () ? ",\n" : "));\n");
+		}
+
+		return code;
+	}
+
+	/**
+	 * Generates writeTo and readFrom, encoding the properties of a class in the order they are declared.
+	 * The layout starts with a version, the hash of the names and types of the properties, checked when reading.
+	 * Primitives are written as they are while references go through {@code PropertyCodecs}, strings and enums
+	 * by its own codecs and other types by the one given with the option.
+	 * Values are read through the getters and written through the setters.
+	 * Subclasses first call the writeTo and readFrom they inherit, if any. A superclass in this file is known to have
+	 * them or not, others are looked up when the class is initialized, and each class checks its own version.
+	 *
+	 * @param parent Class declaring the properties
+	 * @param props Properties to encode
+	 * @return Methods, one statement per line
+	 */
+	private String codec (TypeDeclaration parent, List<PropertyDeclaration> props)
+	{
+		String codecs = "com.idioticdev.javagrande.PropertyCodecs";
+		String layout = "";
+		String write = "";
+		String read = "";
+		for (PropertyDeclaration prop : props)
+		{
+			String type = prop.getType ().toString ();
+			String upper = upper (prop.getName ());
+			String value = "get"+upper+" ()";
+			String codec = prop.getOption ("codec");
+			layout += prop.getName ()+":"+type+";";
+			if (codec == null && type.matches ("(java\\.lang\\.)?String"))
+				codec = codecs+".STRING";
+			switch (codec != null ? "" : type)
+			{
+				case "":
+					write += "	"+codecs+".write (buffer, "+value+", "+codec+");\n";
+					read += "	set"+upper+" ("+codecs+".read (buffer, "+codec+"));\n";
+					break;
+				case "boolean":
+					write += "	buffer.put ((byte) ("+value+" ? 1 : 0));\n";
+					read += "	set"+upper+" (buffer.get () != 0);\n";
+					break;
+				case "byte":
+					write += "	buffer.put ("+value+");\n";
+					read += "	set"+upper+" (buffer.get ());\n";
+					break;
+				case "char":
+				case "short":
+				case "int":
+				case "long":
+				case "float":
+				case "double":
+					String method = upper (type);
+					write += "	buffer.put"+method+" ("+value+");\n";
+					read += "	set"+upper+" (buffer.get"+method+" ());\n";
+					break;
+				default:
+					// Anything else is an enum, checked by the bounds of the calls
+					write += "	"+codecs+".writeEnum (buffer, "+value+");\n";
+					read += "	set"+upper+" ("+codecs+".readEnum (buffer, "+type+".class));\n";
+					break;
+			}
+		}
+
+		int version = layout.hashCode ();
+		String code = "";
+		String inherited = "";
+		String readInherited = "";
+
+		// The first superclass in this file with a codec is called directly, others are looked up
+		TypeDeclaration base = parent;
+		boolean lookup = extendsAny (parent);
+		List<TypeDeclaration> supers = new LinkedList<> ();
+		while (superclass (base) != null && !supers.contains (superclass (base)))
+		{
+			base = superclass (base);
+			supers.add (base);
+			if (hasCodec (base))
+			{
+				inherited = "	super.writeTo (buffer);\n";
+				readInherited = "	super.readFrom (buffer);\n";
+				lookup = false;
+				break;
+			}
+			if (encodes (base) != null)
+				break;
+			lookup = extendsAny (base);
+		}
+		if (lookup)
+		{
+			// Inner classes can not have static members, each instance looks the methods up instead
+			String scope = isStatic (parent) ? "static " : "";
+			String find = codecs+".inherited (java.lang.invoke.MethodHandles.lookup (), "+parent.getName ()+".class, ";
+			String rethrow = " catch (Throwable e) { throw "+codecs+".unchecked (e); }\n";
+			code = "private "+scope+"final java.lang.invoke.MethodHandle _SUPER_WRITE = "+find+"\"writeTo\");\n"
+				+ "private "+scope+"final java.lang.invoke.MethodHandle _SUPER_READ = "+find+"\"readFrom\");\n";
+			inherited = "	if (_SUPER_WRITE != null) try { _SUPER_WRITE.invokeExact (this, buffer); }"+rethrow;
+			readInherited = "	if (_SUPER_READ != null) try { _SUPER_READ.invokeExact (this, buffer); }"+rethrow;
+		}
+
+		return code
+			+ "public void writeTo (java.nio.ByteBuffer buffer)\n"
+			+ "{\n"
+			+ inherited
+			+ "	buffer.putInt ("+version+");\n"
+			+ write
+			+ "}\n"
+			+ "public void readFrom (java.nio.ByteBuffer buffer)\n"
+			+ "{\n"
+			+ readInherited
+			+ "	if (buffer.getInt () != "+version+") throw new IllegalArgumentException (\"Not an encoded "+parent.getName ()+"\");\n"
+			+ read
+			+ "}\n";
+	}
+
+	/**
+	 * @return If the type has properties with the codec option
+	 */
+	private boolean hasCodec (TypeDeclaration type)
+	{
+		for (PropertyDeclaration prop : props)
+			if (prop.getParentNode () == type && prop.hasOption ("codec"))
+				return true;
+
+		return false;
+	}
+
+	/**
+	 * @return If the type is a class extending another
+	 */
+	private static boolean extendsAny (TypeDeclaration type)
+	{
+		return type instanceof ClassOrInterfaceDeclaration && !((ClassOrInterfaceDeclaration) type).isInterface ()
+			&& ((ClassOrInterfaceDeclaration) type).getExtends () != null && !((ClassOrInterfaceDeclaration) type).getExtends ().isEmpty ();
+	}
+
+	/**
+	 * Generates the table class of a class, NameTable, holding each columnar property in an array of its own.
+	 * Rows are added at the end and the arrays grow by doubling. A cursor is moved over the rows and has the
+	 * accessors of the properties, so cursor.name reads table.name[row].
+	 *
+	 * @param parent Class declaring the properties
+	 * @param props Columnar properties of the class
+	 * @return Table class
+	 */
+	private static String columns (TypeDeclaration parent, List<PropertyDeclaration> props)
+	{
+		String table = parent.getName ()+"Table";
+		String fields = "";
+		String grow = "";
+		String added = "";
+		String copied = "";
+		String accessors = "";
+		for (PropertyDeclaration prop : props)
+		{
+			String name = prop.getName ();
+			String upper = upper (name);
+			String type = erasure (prop.getType (), parent);
+			fields += "	public "+type+"[] "+name+" = new "+type+"[16];\n";
+			grow += "		"+name+" = java.util.Arrays.copyOf ("+name+", capacity);\n";
+			if (prop.getDefault () != null)
+				added += "		"+name+"[size] = "+prop.getDefault ()+";\n";
+			copied += "		"+name+"[row] = source.get"+upper+" ();\n";
+			accessors += "		public "+type+" get"+upper+" () { return "+name+"[row]; }\n"
+				+ "		public void set"+upper+" ("+type+" value) { "+name+"[row] = value; }\n";
+		}
+
+		String first = props.get (0).getName ();
+		return "public "+(isStatic (parent) ? "static " : "")+"final class "+table+"\n"
+			+ "{\n"
+			+ fields
+			+ "	private int size;\n"
+			+ "	public int size () { return size; }\n"
+			+ "	public int add ()\n"
+			+ "	{\n"
+			+ "		if (size == "+first+".length)\n"
+			+ "		{\n"
+			+ "			int capacity = size*2;\n"
+			+ grow.replace ("\n		", "\n			").replaceFirst ("^		", "			")
+			+ "		}\n"
+			+ added
+			+ "		return size++;\n"
+			+ "	}\n"
+			+ "	public int add ("+parent.getName ()+" source)\n"
+			+ "	{\n"
+			+ "		int row = add ();\n"
+			+ copied
+			+ "		return row;\n"
+			+ "	}\n"
+			+ "	public Cursor cursor () { return new Cursor (); }\n"
+			+ "	public final class Cursor\n"
+			+ "	{\n"
+			+ "		private int row = -1;\n"
+			+ "		public int getRow () { return row; }\n"
+			+ "		public Cursor moveTo (int row) { this.row = row; return this; }\n"
+			+ "		public boolean next () { return ++row < size; }\n"
+			+ accessors
+			+ "	}\n"
+			+ "}\n";
+	}
+
+	/**
+	 * @param primitive Primitive type
+	 * @return Bytes taken by a value of the type in a {@code PropertyStore}
+	 */
+	private static int size (String primitive)
+	{
+		switch (primitive)
+		{
+			case "boolean":
+			case "byte":
+				return 1;
+			case "char":
+			case "short":
+				return 2;
+			case "int":
+			case "float":
+				return 4;
+			default:
+				return 8;
+		}
+	}
+
+	/**
+	 * Numbers the properties with an option in the order they are declared in their class.
+	 *
+	 * @param option Option of the properties to number
+	 * @param counts Filled with the number of properties with the option in each class
+	 * @return Index of each property with the option
+	 */
+	private Map<PropertyDeclaration, Integer> number (String option, Map<TypeDeclaration, Integer> counts)
+	{
+		Map<PropertyDeclaration, Integer> numbers = new IdentityHashMap<> ();
+		for (PropertyDeclaration prop : props)
+			if (prop.hasOption (option))
+				numbers.put (prop, counts.merge ((TypeDeclaration) prop.getParentNode (), 1, Integer::sum)-1);
+
+		return numbers;
+	}
+
+	/**
+	 * Encodes a primitive value as a long without boxing, floating point values by their raw bits.
+	 *
+	 * @param type Type of the value
+	 * @param value Expression of the value
+	 * @return Expression of the long, null for reference types
+	 */
+	private static String encode (Type type, String value)
+	{
+		if (!(type instanceof PrimitiveType))
+			return null;
+
+		switch (type.toString ())
+		{
+			case "boolean":
+				return value+" ? 1L : 0L";
+			case "float":
+				return "Float.floatToRawIntBits ("+value+")";
+			case "double":
+				return "Double.doubleToRawLongBits ("+value+")";
+			default:
+				return value;
+		}
+	}
+
+	/**
+	 * Generates the statement appending a write of a journaled property to its {@code PropertyJournal}.
+	 * References are recorded by their hash code.
+	 *
+	 * @param prop Property written
+	 * @param parent Type declaring the property
+	 * @param old Expression of the value before the write
+	 * @return Statement, empty if the property is not journaled
+	 */
+	private static String journal (PropertyDeclaration prop, TypeDeclaration parent, String old)
+	{
+		if (!prop.hasOption ("journal"))
+			return "";
+
+		String journal = prop.getOption ("journal");
+		if (journal == null)
+			journal = "com.idioticdev.javagrande.PropertyJournal.getDefault ()";
+		String oldBits = encode (prop.getType (), old);
+		String newBits = encode (prop.getType (), "value");
+		if (oldBits == null)
+		{
+			oldBits = "java.util.Objects.hashCode ("+old+")";
+			newBits = "java.util.Objects.hashCode (value)";
+		}
+
+		int id = (parent.getName ()+"."+prop.getName ()).hashCode ();
+		return "com.idioticdev.javagrande.PropertyJournal.append ("+journal+", _journalId, "+id+", "+oldBits+", "+newBits+");\n";
+	}
+
+	/**
+	 * Finds the properties of the same class a computed property reads and replaces the reads with their getters,
+	 * so lazy and computed inputs are brought up to date first.
+	 *
+	 * @param prop Computed property
+	 * @return Properties the compute expression reads, by name or through this
+	 */
+	private List<PropertyDeclaration> inputs (PropertyDeclaration prop)
+	{
+		Map<String, PropertyDeclaration> named = new HashMap<> ();
+		for (PropertyDeclaration other : props)
+			if (other.getParentNode () == prop.getParentNode () && !other.isStatic ())
+				named.put (other.getName (), other);
+
+		List<Expression> reads = new LinkedList<> ();
+		prop.getOptions ().get ("compute").accept (new VoidVisitorAdapter<Object> ()
+		{
+			@Override
+			public void visit (final NameExpr n, final Object arg)
+			{
+				if (named.containsKey (n.getName ()))
+					reads.add (n);
+			}
+
+			@Override
+			public void visit (final FieldAccessExpr n, final Object arg)
+			{
+				if (n.getScope () instanceof ThisExpr && named.containsKey (n.getField ()))
+					reads.add (n);
+				else
+					super.visit (n, arg);
+			}
+		}, null);
+
+		List<PropertyDeclaration> inputs = new LinkedList<> ();
+		for (Expression read : reads)
+		{
+			String name = read instanceof NameExpr ? ((NameExpr) read).getName () : ((FieldAccessExpr) read).getField ();
+			Expression scope = read instanceof FieldAccessExpr ? ((FieldAccessExpr) read).getScope () : null;
+			MethodCallExpr mc = new MethodCallExpr (scope, "get"+upper (name));
+
+			Node parent = read.getParentNode ();
+			if (parent == null)
+				prop.getOptions ().put ("compute", mc);
+			else
+			{
+				try
+				{
+					replaceValue (parent, read, mc);
+					mc.setParentNode (parent);
+				}
+				catch (IllegalAccessException e)
+				{
+					System.out.println (e);
+				}
+			}
+
+			// Nodes compare by their source, each property is added once
+			PropertyDeclaration input = named.get (name);
+			if (inputs.stream ().noneMatch ((p) -> p == input))
+				inputs.add (input);
+		}
+
+		return inputs;
+	}
+
+	/**
+	 * Erases the generics from a type so it can be used in a class literal.
+	 *
+	 * @param type Type to erase
+	 * @param parent Type declaring the type parameters type may refer to
+	 * @return Type as source, like List for List&lt;String&gt;
+	 */
+	private static String erasure (Type type, TypeDeclaration parent)
+	{
+		String erased = type.toString ().replaceAll ("<.*>", "").trim ();
+		String base = erased.replace ("[]", "").trim ();
+
+		if (parent instanceof ClassOrInterfaceDeclaration && ((ClassOrInterfaceDeclaration) parent).getTypeParameters () != null)
+			for (TypeParameter param : ((ClassOrInterfaceDeclaration) parent).getTypeParameters ())
+				if (param.getName ().equals (base))
+				{
+					List<ClassOrInterfaceType> bound = param.getTypeBound ();
+					String erasedBound = bound == null || bound.isEmpty () ? "Object" : erasure (bound.get (0), parent);
+					return erasedBound+erased.substring (base.length ());
+				}
+
+		return erased;
+	}
+
+	/**
+	 * Parses generated members and moves them to start after line.
+	 *
+	 * @param code Members to parse
+	 * @param line Line before the first member
+	 * @param col Column the members are indented to
+	 * @return Parsed members
+	 */
+	private static List<BodyDeclaration> members (String code, int line, int col)
+	{
+		try
+		{
+			List<BodyDeclaration> members = new ASTParser (new StringReader ("{\n"+code+"}")).ClassOrInterfaceBody (false);
+			for (BodyDeclaration member : members)
+				move (member, line-1, col-1);
+
+			return members;
+		}
+		catch (ParseException e)
+		{
+			throw new IllegalStateException ("Generated invalid code\n"+code, e);
+		}
+	}
+
+	/**
+	 * Parses generated statements. Their lines are set by the caller.
+	 *
+	 * @param code Statements to parse
+	 * @return Parsed statements
+	 */
+	private static List<Statement> statements (String code)
+	{
+		try
+		{
+			return new ASTParser (new StringReader ("{"+code+"}")).Block ().getStmts ();
+		}
+		catch (ParseException e)
+		{
+			throw new IllegalStateException ("Generated invalid code\n"+code, e);
+		}
+	}
+
+	/**
+	 * Parses generated statements and puts them at the start of body.
+	 */
+	private static void prepend (BlockStmt body, String code, int col)
+	{
+		if (code.isEmpty ())
+			return;
+
+		List<Statement> stmts = statements (code);
+		for (Statement stmt : stmts)
+			stmt.setBeginColumn (col);
+		if (body.getStmts () != null)
+			stmts.addAll (body.getStmts ());
+		body.setStmts (stmts);
+	}
+
+	private static String upper (String name)
+	{
+		return Character.toUpperCase (name.charAt (0))+name.substring (1);
+	}
+
+	private static void move (Node node, int lines, int cols)
+	{
+		node.setBeginLine (node.getBeginLine ()+lines);
+		node.setEndLine (node.getEndLine ()+lines);
+		node.setBeginColumn (node.getBeginColumn ()+cols);
+		node.setEndColumn (node.getEndColumn ()+cols);
+		for (Node child : node.getChildrenNodes ())
+			move (child, lines, cols);
+	}
+
+	/**
+	 * @return If type can declare static fields, top level and static nested types can while inner classes can not
+	 */
+	static boolean isStatic (TypeDeclaration type)
+	{
+		Node parent = type.getParentNode ();
+		if (!(parent instanceof TypeDeclaration) || type instanceof EnumDeclaration || ModifierSet.isStatic (type.getModifiers ()))
+			return true;
+
+		return parent instanceof ClassOrInterfaceDeclaration && ((ClassOrInterfaceDeclaration) parent).isInterface ();
+	}
+
 	/**
 	 * Preforms second pass of code generation and transforming.
 	 * When an error occurs during compilation this should be called to transform the code if necessary.
@@ -323,13 +1825,15 @@ public class CodeVisitor<T> extends VoidVisitorAdapter<T>
 				// Could be contained in a list
 				if (field.getType ().getTypeName ().equals ("java.util.List"))
 				{
+					// Replaced in place, arguments and statements keep their order
 					List list = (List) field.get (parent);
-					if (list != null && list.contains (oldVal))
-					{
-						list.remove (oldVal);
-						list.add (newVal);
-						return;
-					}
+					if (list != null)
+						for (int i = 0; i < list.size (); i++)
+							if (list.get (i) == oldVal)
+							{
+								list.set (i, newVal);
+								return;
+							}
 				}
 				else if (field.get (parent) == oldVal)
 				{
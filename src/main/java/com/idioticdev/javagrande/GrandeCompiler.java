@@ -0,0 +1,623 @@
+package com.idioticdev.javagrande;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+import java.net.URI;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.DiagnosticCollector;
+import javax.tools.DiagnosticListener;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+import javax.tools.ToolProvider;
+
+import com.sun.source.util.JavacTask;
+
+import com.github.javaparser.ast.CompilationUnit;
+
+/**
+ * Compiles JavaGrande sources in process.
+ * <p>
+ * The system compiler, file managers, parsed sources and a thread pool are kept for the life of the instance
+ * so repeated compiles only pay for the files that changed. One instance may be used by many threads at once.
+ * Call close when done to release the thread pool and file managers.
+ */
+public class GrandeCompiler implements AutoCloseable
+{
+	private final JavaCompiler compiler = ToolProvider.getSystemJavaCompiler ();
+	private final Queue<StandardJavaFileManager> fileManagers = new ConcurrentLinkedQueue<> ();
+	private final ConcurrentHashMap<Path, Parsed> cache = new ConcurrentHashMap<> ();
+	private final ExecutorService executor;
+	private final int threads;
+
+	/**
+	 * Paths copied from the host file manager when translating for another javac invocation.
+	 */
+	private static final StandardLocation[] LOCATIONS = {
+		StandardLocation.CLASS_PATH, StandardLocation.SOURCE_PATH, StandardLocation.PLATFORM_CLASS_PATH
+	};
+
+	public GrandeCompiler ()
+	{
+		this (Runtime.getRuntime ().availableProcessors ());
+	}
+
+	/**
+	 * @param threads Number of threads used to parse sources and compile independent groups of them
+	 */
+	public GrandeCompiler (int threads)
+	{
+		this.threads = threads;
+		executor = Executors.newFixedThreadPool (threads, (r) ->
+		{
+			Thread thread = new Thread (r, "grande-worker");
+			thread.setDaemon (true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Translates and compiles the files.
+	 *
+	 * @param files JavaGrande sources to compile
+	 * @param options Options passed through to javac
+	 * @return Diagnostics and the processed sources
+	 */
+	public Result compile (List<Path> files, List<String> options)
+	{
+		return compile (files, options, null);
+	}
+
+	/**
+	 * Translates the files and either compiles them or writes the processed sources to output.
+	 *
+	 * @param files JavaGrande sources to compile
+	 * @param options Options passed through to javac
+	 * @param output Directory to write the processed sources to, null to compile them
+	 * @return Diagnostics and the processed sources
+	 */
+	public Result compile (List<Path> files, List<String> options, Path output)
+	{
+		DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<> ();
+		List<Parsed> parsed = load (files, diagnostics);
+
+		try
+		{
+			List<JavaFileObject> sources = new LinkedList<> ();
+			for (Parsed p : parsed)
+				sources.add (p.source);
+
+			if (sources.isEmpty ())
+				return new Result (diagnostics.getDiagnostics ().isEmpty (), diagnostics.getDiagnostics (), sources);
+
+			boolean success = compile (sources, options, output, diagnostics);
+			return new Result (success, diagnostics.getDiagnostics (), sources);
+		} finally
+		{
+			// Return sources to the cache for the next compile
+			for (Parsed p : parsed)
+				cache.putIfAbsent (p.file, p);
+		}
+	}
+
+	/**
+	 * Runs the second code generation pass on the sources then compiles them or writes them to output.
+	 * Sources are split into independent groups, see {@link SourceGraph}, and each pass compiles the groups in parallel.
+	 *
+	 * @return If there were no errors
+	 */
+	private boolean compile (List<JavaFileObject> sources, List<String> options, Path output, DiagnosticCollector<JavaFileObject> diagnostics)
+	{
+		List<List<JavaFileObject>> groups = SourceGraph.of (sources).partition (sources, threads);
+
+		// Try to compile. Errors needed for second pass
+		compile (groups, options, (group) -> (e) ->
+		{
+			if (e.getSource () instanceof JavaSource)
+				((JavaSource) e.getSource ()).getVisitor ().resolveError (e.getLineNumber (), e.getColumnNumber());
+			else
+				group.report (e);
+		}, diagnostics);
+
+		if (output == null)
+		{
+			// Compile resulting sources
+			return compile (groups, options, (group) -> group, diagnostics) && !hasErrors (diagnostics);
+		}
+
+		try
+		{
+			sources = new LinkedList<> (sources);
+			sources.addAll (PropertyObserverSource.all ());
+
+			Files.createDirectories (output);
+			for (JavaFileObject source : sources)
+				Files.write(Paths.get(output.toString (), source.getName ()), source.getCharContent (true).toString ().getBytes());
+
+			return !hasErrors (diagnostics);
+		}
+		catch (IOException e)
+		{
+			diagnostics.report (new MessageDiagnostic (Diagnostic.Kind.ERROR, e.toString (), Diagnostic.NOPOS, Diagnostic.NOPOS));
+			return false;
+		}
+	}
+
+	/**
+	 * Compiles each group with its own javac task, in parallel when there is more than one.
+	 * Every group gets its own copy of the runtime sources but only the first group writes their class files.
+	 *
+	 * @param listeners Creates the listener for a group given the collector for that group's diagnostics
+	 * @param diagnostics Receives the diagnostics of all groups, in group order
+	 * @return If every task succeeded
+	 */
+	private boolean compile (List<List<JavaFileObject>> groups, List<String> options,
+		Function<DiagnosticCollector<JavaFileObject>, DiagnosticListener<JavaFileObject>> listeners, DiagnosticCollector<JavaFileObject> diagnostics)
+	{
+		List<DiagnosticCollector<JavaFileObject>> collectors = new ArrayList<> ();
+		List<Callable<Boolean>> tasks = new ArrayList<> ();
+		for (int i = 0; i < groups.size (); i++)
+		{
+			List<JavaFileObject> group = new LinkedList<> (groups.get (i));
+			group.addAll (PropertyObserverSource.all ());
+
+			DiagnosticCollector<JavaFileObject> collector = new DiagnosticCollector<> ();
+			DiagnosticListener<JavaFileObject> listener = listeners.apply (collector);
+			boolean writesRuntime = i == 0;
+			collectors.add (collector);
+			tasks.add (() ->
+			{
+				StandardJavaFileManager fileManager = fileManagers.poll ();
+				if (fileManager == null)
+					fileManager = compiler.getStandardFileManager (null, null, null);
+
+				try
+				{
+					JavaFileManager manager = writesRuntime ? fileManager : new RuntimeFilter (fileManager);
+					return compiler.getTask(null, manager, listener, options, null, group).call();
+				}
+				finally
+				{
+					fileManagers.offer (fileManager);
+				}
+			});
+		}
+
+		boolean success = true;
+		try
+		{
+			if (tasks.size () == 1)
+				success = tasks.get (0).call ();
+			else
+				for (Future<Boolean> future : executor.invokeAll (tasks))
+					success &= future.get ();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread ().interrupt ();
+			success = false;
+		}
+		catch (Exception e)
+		{
+			Throwable cause = e instanceof ExecutionException ? e.getCause () : e;
+			diagnostics.report (new MessageDiagnostic (Diagnostic.Kind.ERROR, cause.toString (), Diagnostic.NOPOS, Diagnostic.NOPOS));
+			success = false;
+		}
+
+		for (DiagnosticCollector<JavaFileObject> collector : collectors)
+			for (Diagnostic<? extends JavaFileObject> d : collector.getDiagnostics ())
+				diagnostics.report (d);
+
+		return success;
+	}
+
+	/**
+	 * Parses the files and runs the first code generation pass without compiling them.
+	 * The parsed sources are cached so a following compile of the same files does not parse them again.
+	 *
+	 * @param files JavaGrande sources to index
+	 * @param diagnostics Receives parse errors
+	 * @return Names each file declares and references, null for files that could not be parsed
+	 */
+	List<SourceGraph.Names> index (List<Path> files, DiagnosticCollector<JavaFileObject> diagnostics)
+	{
+		Map<Path, SourceGraph.Names> names = new HashMap<> ();
+		for (Parsed p : load (files, diagnostics))
+		{
+			names.put (p.file, SourceGraph.Names.of (p.template.getCompilationUnit ()));
+			cache.putIfAbsent (p.file, p);
+		}
+
+		List<SourceGraph.Names> index = new ArrayList<> ();
+		for (Path file : files)
+			index.add (names.get (file.toAbsolutePath ().normalize ()));
+
+		return index;
+	}
+
+	/**
+	 * Parse the files and run the first code generation pass on them in parallel.
+	 * Files that have not changed since the last compile are taken from the cache.
+	 * The cache keeps the sources as they are after the first pass. Each compile gets a copy, because the second pass
+	 * rewrites it based on the other sources, which may have changed by the next compile.
+	 * Cached sources are removed from the cache while in use so concurrent compiles never share an AST.
+	 */
+	private List<Parsed> load (List<Path> files, DiagnosticCollector<JavaFileObject> diagnostics)
+	{
+		List<Future<Parsed>> futures = new ArrayList<> ();
+		for (Path file : files)
+			futures.add (executor.submit (() -> load (file, diagnostics)));
+
+		List<Parsed> parsed = new ArrayList<> ();
+		for (Future<Parsed> future : futures)
+		{
+			try
+			{
+				Parsed p = future.get ();
+				if (p != null)
+					parsed.add (p);
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread ().interrupt ();
+			}
+			catch (ExecutionException e)
+			{
+				diagnostics.report (new MessageDiagnostic (Diagnostic.Kind.ERROR, e.getCause ().toString (), Diagnostic.NOPOS, Diagnostic.NOPOS));
+			}
+		}
+
+		return parsed;
+	}
+
+	private Parsed load (Path file, DiagnosticCollector<JavaFileObject> diagnostics) throws IOException
+	{
+		Path key = file.toAbsolutePath ().normalize ();
+		FileTime modified = Files.getLastModifiedTime (key);
+
+		Parsed cached = cache.remove (key);
+		if (cached != null && cached.modified.equals (modified))
+			return new Parsed (key, modified, cached.template);
+
+		String name = file.toString ();
+		try (InputStream in = new FileInputStream (file.toFile ()))
+		{
+			// Build AST
+			CompilationUnit cu = JavaGrande.parse (in);
+			if (cu == null)
+				return null;
+
+			CodeVisitor visitor = new CodeVisitor();
+			visitor.visit(cu, null); // Collect information
+			visitor.generate (); // First pass
+
+			return new Parsed (key, modified, new JavaSource(name.substring (0, name.lastIndexOf (".")), cu, visitor));
+		}
+		catch (ParseException e)
+		{
+			long line = Diagnostic.NOPOS;
+			long col = Diagnostic.NOPOS;
+			if (e.currentToken != null && e.currentToken.next != null)
+			{
+				line = e.currentToken.next.beginLine;
+				col = e.currentToken.next.beginColumn;
+			}
+
+			diagnostics.report (new MessageDiagnostic (Diagnostic.Kind.ERROR, "Problem parsing file "+name+".\n"+e, line, col));
+			return null;
+		}
+	}
+
+	/**
+	 * Translates JavaGrande sources into plain java without compiling them.
+	 * Used when another javac invocation does the compiling, see {@link GrandePlugin}.
+	 * Files that can not be parsed as JavaGrande or need no changes are returned as is so javac reports on the originals.
+	 *
+	 * @param files Sources to translate
+	 * @param fileManager File manager the sources are compiled with, its paths are used to resolve property access
+	 * @return Sources to compile instead, keeping the URIs of the originals
+	 * @throws IOException Sources could not be read
+	 */
+	public List<JavaFileObject> translate (Collection<? extends JavaFileObject> files, JavaFileManager fileManager) throws IOException
+	{
+		List<Future<JavaFileObject>> futures = new ArrayList<> ();
+		for (JavaFileObject file : files)
+			futures.add (executor.submit (() ->
+			{
+				if (file.getKind () != JavaFileObject.Kind.SOURCE)
+					return file;
+
+				try (InputStream in = file.openInputStream ())
+				{
+					CompilationUnit cu = JavaGrande.parse (in);
+					if (cu == null)
+						return file;
+
+					CodeVisitor visitor = new CodeVisitor();
+					visitor.visit(cu, null); // Collect information
+					visitor.generate (); // First pass
+					return new JavaSource (file.toUri (), cu, visitor);
+				}
+				catch (ParseException e)
+				{
+					return file;
+				}
+			}));
+
+		List<JavaFileObject> sources = new ArrayList<> ();
+		for (Future<JavaFileObject> future : futures)
+			try
+			{
+				sources.add (future.get ());
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread ().interrupt ();
+				throw new InterruptedIOException ();
+			}
+			catch (ExecutionException e)
+			{
+				if (e.getCause () instanceof IOException)
+					throw (IOException) e.getCause ();
+				throw new IOException (e.getCause ());
+			}
+
+		List<PropertyObserverSource> runtime = PropertyObserverSource.all ();
+		sources.addAll (runtime);
+
+		// Analyze only, errors needed for second pass
+		StandardJavaFileManager standard = fileManagers.poll ();
+		if (standard == null)
+			standard = compiler.getStandardFileManager (null, null, null);
+
+		Set<JavaSource> resolved = ConcurrentHashMap.newKeySet ();
+		try
+		{
+			if (fileManager instanceof StandardJavaFileManager)
+				for (StandardLocation location : LOCATIONS)
+					standard.setLocation (location, ((StandardJavaFileManager) fileManager).getLocation (location));
+
+			JavacTask task = (JavacTask) compiler.getTask(null, standard, (e) ->
+			{
+				if (e.getSource () instanceof JavaSource && ((JavaSource) e.getSource ()).getVisitor ().resolveError (e.getLineNumber (), e.getColumnNumber()))
+					resolved.add ((JavaSource) e.getSource ());
+			}, Arrays.asList ("-proc:none"), null, sources);
+			task.analyze ();
+		}
+		finally
+		{
+			fileManagers.offer (standard);
+		}
+
+		// Only hand javac what actually changed
+		boolean hasProperties = false;
+		List<JavaFileObject> translated = new ArrayList<> ();
+		int i = 0;
+		for (JavaFileObject file : files)
+		{
+			JavaFileObject source = sources.get (i++);
+			if (source instanceof JavaSource)
+			{
+				CodeVisitor visitor = ((JavaSource) source).getVisitor ();
+				hasProperties = hasProperties || visitor.hasProperties ();
+				if (visitor.hasProperties () || resolved.contains (source))
+				{
+					translated.add (source);
+					continue;
+				}
+			}
+
+			translated.add (file);
+		}
+
+		if (hasProperties)
+			translated.addAll (runtime);
+
+		return translated;
+	}
+
+	private static boolean hasErrors (DiagnosticCollector<JavaFileObject> diagnostics)
+	{
+		for (Diagnostic<? extends JavaFileObject> d : diagnostics.getDiagnostics ())
+			if (d.getKind () == Diagnostic.Kind.ERROR)
+				return true;
+
+		return false;
+	}
+
+	/**
+	 * Drops all cached sources, forcing them to be parsed again on the next compile.
+	 */
+	public void clearCache ()
+	{
+		cache.clear ();
+	}
+
+	@Override
+	public void close ()
+	{
+		executor.shutdown ();
+		StandardJavaFileManager fileManager;
+		while ((fileManager = fileManagers.poll ()) != null)
+			try
+			{
+				fileManager.close ();
+			}
+			catch (IOException e) {}
+	}
+
+	/**
+	 * Outcome of a single compile.
+	 */
+	public static class Result
+	{
+		private final boolean success;
+		private final List<Diagnostic<? extends JavaFileObject>> diagnostics;
+		private final List<JavaFileObject> sources;
+
+		Result (boolean success, List<Diagnostic<? extends JavaFileObject>> diagnostics, List<JavaFileObject> sources)
+		{
+			this.success = success;
+			this.diagnostics = Collections.unmodifiableList (diagnostics);
+			this.sources = Collections.unmodifiableList (sources);
+		}
+
+		/**
+		 * @return If every file was parsed and compiled without errors
+		 */
+		public boolean isSuccess ()
+		{
+			return success;
+		}
+
+		/**
+		 * @return Parse errors and javac diagnostics in the order they were reported
+		 */
+		public List<Diagnostic<? extends JavaFileObject>> getDiagnostics ()
+		{
+			return diagnostics;
+		}
+
+		/**
+		 * @return Processed sources, {@link JavaFileObject#getCharContent} returns the generated java code
+		 */
+		public List<JavaFileObject> getSources ()
+		{
+			return sources;
+		}
+	}
+
+	/**
+	 * Discards the class files of the runtime sources so groups compiled in parallel do not all write them.
+	 */
+	private static class RuntimeFilter extends ForwardingJavaFileManager<StandardJavaFileManager>
+	{
+		RuntimeFilter (StandardJavaFileManager fileManager)
+		{
+			super (fileManager);
+		}
+
+		@Override
+		public JavaFileObject getJavaFileForOutput (Location location, String className, JavaFileObject.Kind kind, FileObject sibling) throws IOException
+		{
+			if (!(sibling instanceof PropertyObserverSource))
+				return super.getJavaFileForOutput (location, className, kind, sibling);
+
+			return new SimpleJavaFileObject (URI.create ("discard:///"+className.replace ('.', '/')+kind.extension), kind)
+			{
+				@Override
+				public OutputStream openOutputStream ()
+				{
+					return new ByteArrayOutputStream ();
+				}
+			};
+		}
+	}
+
+	/**
+	 * A parsed file and when it was last modified.
+	 */
+	private static class Parsed
+	{
+		final Path file;
+		final FileTime modified;
+		final JavaSource template;
+		final JavaSource source;
+
+		/**
+		 * @param template Source after the first pass, left as is and copied for the compile
+		 */
+		Parsed (Path file, FileTime modified, JavaSource template)
+		{
+			this.file = file;
+			this.modified = modified;
+			this.template = template;
+			this.source = template.copy ();
+		}
+	}
+
+	/**
+	 * Problem reported by JavaGrande itself, or by javac in a worker process, see {@link WorkerPool}.
+	 */
+	static class MessageDiagnostic implements Diagnostic<JavaFileObject>
+	{
+		private final Kind kind;
+		private final String message;
+		private final long line;
+		private final long col;
+
+		MessageDiagnostic (Kind kind, String message, long line, long col)
+		{
+			this.kind = kind;
+			this.message = message;
+			this.line = line;
+			this.col = col;
+		}
+
+		@Override
+		public Kind getKind () { return kind; }
+
+		@Override
+		public JavaFileObject getSource () { return null; }
+
+		@Override
+		public long getPosition () { return NOPOS; }
+
+		@Override
+		public long getStartPosition () { return NOPOS; }
+
+		@Override
+		public long getEndPosition () { return NOPOS; }
+
+		@Override
+		public long getLineNumber () { return line; }
+
+		@Override
+		public long getColumnNumber () { return col; }
+
+		@Override
+		public String getCode () { return null; }
+
+		@Override
+		public String getMessage (Locale locale) { return message; }
+
+		@Override
+		public String toString () { return message; }
+	}
+}
@@ -0,0 +1,110 @@
+package com.idioticdev.javagrande;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+
+import java.util.List;
+import java.util.Set;
+
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+
+import com.sun.source.util.JavacTask;
+import com.sun.source.util.Plugin;
+
+/**
+ * Runs JavaGrande inside an existing javac invocation so builds do not need the wrapper.
+ * <p>
+ * Enable with {@code -Xplugin:Grande} and the jar on the processor path.
+ * Before javac parses anything the plugin translates the sources handed to it and swaps the translated
+ * versions into javac's list of files, keeping their URIs so errors still point to the originals.
+ * <p>
+ * javac keeps that list internally, so the compiler must open its internals to the plugin, see {@link #OPTIONS}.
+ * Requires JDK 9 or later.
+ */
+public class GrandePlugin implements Plugin
+{
+	/**
+	 * Options the JVM running javac needs for the plugin to reach the list of files.
+	 */
+	public static final String OPTIONS = "--add-exports jdk.compiler/com.sun.tools.javac.api=ALL-UNNAMED"
+		+ " --add-exports jdk.compiler/com.sun.tools.javac.util=ALL-UNNAMED"
+		+ " --add-opens jdk.compiler/com.sun.tools.javac.main=ALL-UNNAMED";
+
+	@Override
+	public String getName ()
+	{
+		return "Grande";
+	}
+
+	@Override
+	public void init (JavacTask task, String... args)
+	{
+		Set<JavaFileObject> files;
+		JavaFileManager fileManager;
+		try
+		{
+			files = files (task);
+			fileManager = fileManager (task);
+		}
+		catch (ReflectiveOperationException | RuntimeException e)
+		{
+			throw new IllegalStateException ("Unable to access javac internals, run javac with "+OPTIONS, e);
+		}
+
+		if (files.isEmpty ())
+			return;
+
+		try (GrandeCompiler compiler = new GrandeCompiler ())
+		{
+			List<JavaFileObject> translated = compiler.translate (files, fileManager);
+			files.clear ();
+			files.addAll (translated);
+		}
+		catch (IOException e)
+		{
+			throw new IllegalStateException (e);
+		}
+	}
+
+	/**
+	 * Finds the files javac is about to compile.
+	 * Files named on the command line are kept as paths and added to the set every time it is requested,
+	 * so they are moved into the set for good.
+	 *
+	 * @return The live set of files, changes are seen by javac
+	 */
+	@SuppressWarnings("unchecked")
+	private static Set<JavaFileObject> files (JavacTask task) throws ReflectiveOperationException
+	{
+		Class<?> argumentsClass = Class.forName ("com.sun.tools.javac.main.Arguments");
+		Object arguments = argumentsClass.getMethod ("instance", contextClass ()).invoke (null, context (task));
+
+		Set<JavaFileObject> files = (Set<JavaFileObject>) argumentsClass.getMethod ("getFileObjects").invoke (arguments);
+
+		Field paths = argumentsClass.getDeclaredField ("files");
+		paths.setAccessible (true);
+		if (paths.get (arguments) != null)
+			((Set<?>) paths.get (arguments)).clear ();
+
+		return files;
+	}
+
+	private static JavaFileManager fileManager (JavacTask task) throws ReflectiveOperationException
+	{
+		return (JavaFileManager) contextClass ().getMethod ("get", Class.class).invoke (context (task), JavaFileManager.class);
+	}
+
+	/**
+	 * task is a BasicJavacTask, its Context holds the compiler's components.
+	 */
+	private static Object context (JavacTask task) throws ReflectiveOperationException
+	{
+		return task.getClass ().getMethod ("getContext").invoke (task);
+	}
+
+	private static Class<?> contextClass () throws ClassNotFoundException
+	{
+		return Class.forName ("com.sun.tools.javac.util.Context");
+	}
+}
@@ -0,0 +1,181 @@
+package com.idioticdev.javagrande;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaFileObject;
+
+/**
+ * Worker process started by {@link WorkerPool}.
+ * <p>
+ * Reads requests from stdin and answers on stdout until told to exit or stdin is closed.
+ * Each message is a command string followed by its arguments. Strings are an int length and that many UTF-8 bytes,
+ * lists are an int count and that many strings.
+ * <ul>
+ * <li>index files... parses the files and answers, for each file, a boolean if it was parsed then the lists of
+ * declared and referenced names, followed by the diagnostics.</li>
+ * <li>compile files... options... compiles the files and answers a boolean for success followed by the diagnostics.</li>
+ * <li>exit stops the worker.</li>
+ * </ul>
+ * Parsed sources are kept between requests so files indexed by a worker are not parsed again when it compiles them.
+ */
+public class GrandeWorker
+{
+	static final String INDEX = "index";
+	static final String COMPILE = "compile";
+	static final String EXIT = "exit";
+
+	/**
+	 * @param argv Number of threads to use, defaults to the number of processors
+	 */
+	public static void main (String[] argv) throws IOException
+	{
+		DataInputStream in = new DataInputStream (new BufferedInputStream (System.in));
+		DataOutputStream out = new DataOutputStream (new BufferedOutputStream (new FileOutputStream (FileDescriptor.out)));
+
+		// stdout carries the protocol, anything else printed would corrupt it
+		System.setOut (new PrintStream (new FileOutputStream (FileDescriptor.err), true));
+
+		int threads = argv.length > 0 ? Integer.parseInt (argv[0]) : Runtime.getRuntime ().availableProcessors ();
+		try (GrandeCompiler compiler = new GrandeCompiler (threads))
+		{
+			while (true)
+			{
+				String command;
+				try
+				{
+					command = readString (in);
+				}
+				catch (EOFException e)
+				{
+					return;
+				}
+
+				DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<> ();
+				switch (command)
+				{
+					case INDEX:
+						List<SourceGraph.Names> index = compiler.index (paths (readStrings (in)), diagnostics);
+						for (SourceGraph.Names names : index)
+						{
+							out.writeBoolean (names != null);
+							if (names != null)
+							{
+								writeStrings (out, names.declared);
+								writeStrings (out, names.referenced);
+							}
+						}
+						writeDiagnostics (out, diagnostics.getDiagnostics ());
+						break;
+					case COMPILE:
+						List<Path> files = paths (readStrings (in));
+						GrandeCompiler.Result result = compiler.compile (files, readStrings (in));
+						out.writeBoolean (result.isSuccess ());
+						writeDiagnostics (out, result.getDiagnostics ());
+						break;
+					case EXIT:
+						return;
+					default:
+						throw new IOException ("Unknown command "+command);
+				}
+				out.flush ();
+			}
+		}
+	}
+
+	private static List<Path> paths (List<String> files)
+	{
+		List<Path> paths = new ArrayList<> ();
+		for (String file : files)
+			paths.add (Paths.get (file));
+
+		return paths;
+	}
+
+	static void writeString (DataOutputStream out, String s) throws IOException
+	{
+		byte[] bytes = s.getBytes (StandardCharsets.UTF_8);
+		out.writeInt (bytes.length);
+		out.write (bytes);
+	}
+
+	static String readString (DataInputStream in) throws IOException
+	{
+		byte[] bytes = new byte[in.readInt ()];
+		in.readFully (bytes);
+		return new String (bytes, StandardCharsets.UTF_8);
+	}
+
+	static void writeStrings (DataOutputStream out, Collection<String> strings) throws IOException
+	{
+		out.writeInt (strings.size ());
+		for (String s : strings)
+			writeString (out, s);
+	}
+
+	static List<String> readStrings (DataInputStream in) throws IOException
+	{
+		int count = in.readInt ();
+		List<String> strings = new ArrayList<> (count);
+		for (int i = 0; i < count; i++)
+			strings.add (readString (in));
+
+		return strings;
+	}
+
+	static SourceGraph.Names readNames (DataInputStream in) throws IOException
+	{
+		if (!in.readBoolean ())
+			return null;
+
+		return new SourceGraph.Names (new HashSet<> (readStrings (in)), new HashSet<> (readStrings (in)));
+	}
+
+	/**
+	 * Diagnostics are sent as their kind, line, column and formatted message.
+	 */
+	static void writeDiagnostics (DataOutputStream out, List<Diagnostic<? extends JavaFileObject>> diagnostics) throws IOException
+	{
+		out.writeInt (diagnostics.size ());
+		for (Diagnostic<? extends JavaFileObject> d : diagnostics)
+		{
+			writeString (out, d.getKind ().name ());
+			out.writeLong (d.getLineNumber ());
+			out.writeLong (d.getColumnNumber ());
+			writeString (out, d.toString ());
+		}
+	}
+
+	static List<Diagnostic<JavaFileObject>> readDiagnostics (DataInputStream in) throws IOException
+	{
+		int count = in.readInt ();
+		List<Diagnostic<JavaFileObject>> diagnostics = new ArrayList<> (count);
+		for (int i = 0; i < count; i++)
+		{
+			Diagnostic.Kind kind = Diagnostic.Kind.valueOf (readString (in));
+			long line = in.readLong ();
+			long col = in.readLong ();
+			diagnostics.add (new GrandeCompiler.MessageDiagnostic (kind, readString (in), line, col));
+		}
+
+		return diagnostics;
+	}
+}
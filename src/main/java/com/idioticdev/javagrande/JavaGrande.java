@@ -2,76 +2,86 @@ package com.idioticdev.javagrande;
 
 import java.io.InputStream;
 import java.io.ByteArrayInputStream;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 
+import java.nio.file.FileSystems;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
-import javax.tools.JavaCompiler;
 import javax.tools.JavaFileObject;
-import javax.tools.ToolProvider;
-import javax.tools.DiagnosticListener;
 import javax.tools.Diagnostic;
-import javax.tools.JavaCompiler.CompilationTask;
 
 import com.github.javaparser.SourcesHelper;
 import com.github.javaparser.ast.CompilationUnit;
 
 public class JavaGrande
 {
+	/**
+	 * How long the input roots must be quiet before a rebuild is started in watch mode.
+	 */
+	private static final long DEBOUNCE = 200;
+
 	public static void main (String[] argv)
 	{
-
-		List<JavaFileObject> sources = new LinkedList<> ();
+		List<String> files = new LinkedList<> ();
 		List<String> options = new LinkedList<> ();
 
-		boolean hasProperties = false;
-
 		for (String file : argv)
 		{
 			// Collect options
 			if (!file.endsWith (".java"))
-			{
 				options.add (file);
-				continue;
-			}
+			else
+				files.add (file);
+		}
 
+		boolean watch = options.remove ("--watch");
+
+		int workers = 0;
+		int w = options.indexOf ("--workers");
+		if (w > -1)
+		{
 			try
 			{
-				FileInputStream in = new FileInputStream(file);
-				CompilationUnit cu;
-				try
-				{
-					// Build AST
-					cu = parse (in);
-
-					CodeVisitor visitor = new CodeVisitor();
-					visitor.visit(cu, null); // Collect information
-					hasProperties = hasProperties || visitor.hasProperties ();
-					visitor.generate (); // First pass
-
-					sources.add (new JavaSource(file.substring (0, file.lastIndexOf (".")), cu, visitor));
-				} catch (ParseException e)
-				{
-					System.out.println ("Problem parsing file "+file+".\n"+e);
-				} finally
-				{
-					in.close();
-				}
+				workers = Integer.parseInt (options.get (w+1));
+				options.remove (w);
+				options.remove (w);
 			}
-			catch (IOException e)
+			catch (IndexOutOfBoundsException | NumberFormatException e)
 			{
-				System.out.println (e);
+				System.out.println ("You must specify a number of processes with the --workers option.");
+				return;
 			}
 		}
 
-		if (sources.size () < 1)
-			return;
+		long timeout = WorkerPool.TIMEOUT;
+		int t = options.indexOf ("--worker-timeout");
+		if (t > -1)
+		{
+			try
+			{
+				timeout = Long.parseLong (options.get (t+1));
+				options.remove (t);
+				options.remove (t);
+			}
+			catch (IndexOutOfBoundsException | NumberFormatException e)
+			{
+				System.out.println ("You must specify a number of seconds with the --worker-timeout option.");
+				return;
+			}
+		}
 
 		String path = "";
 		int o = options.indexOf ("-o");
@@ -91,37 +101,144 @@ public class JavaGrande
 			}
 		}
 
-		sources.add (new PropertyObserverSource ());
+		List<Path> inputs = new LinkedList<> ();
+		for (String file : files)
+			inputs.add (Paths.get (file));
 
-		// Try to compile. Errors needed for second pass
-		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
-		CompilationTask task = compiler.getTask(null, null, (e) ->
+		// Workers only pay off for one large build
+		if (workers > 0 && !watch && path.isEmpty ())
 		{
-			if (e.getSource () instanceof JavaSource)
-				((JavaSource) e.getSource ()).getVisitor ().resolveError (e.getLineNumber (), e.getColumnNumber());
-			else
-				System.out.println (e);
-		}, options, null, sources);
-		task.call();
+			try (WorkerPool pool = new WorkerPool (workers, timeout))
+			{
+				GrandeCompiler.Result result = pool.compile (inputs, options);
+				for (Diagnostic<? extends JavaFileObject> d : result.getDiagnostics ())
+					System.out.println (d);
+
+				if (!result.isSuccess ())
+					System.exit (1);
+			}
+			catch (IOException e)
+			{
+				System.out.println ("Unable to start workers. "+e);
+				System.exit (1);
+			}
+			return;
+		}
+
+		try (GrandeCompiler compiler = new GrandeCompiler ())
+		{
+			if (watch)
+			{
+				watch (compiler, inputs, options, path);
+				return;
+			}
+
+			if (!build (compiler, inputs, options, path))
+				System.exit (1);
+		}
+	}
 
-		if (path.isEmpty ())
+	/**
+	 * Compiles the files and prints any problems.
+	 *
+	 * @param compiler Compiler to use
+	 * @param files Files to compile
+	 * @param options Options passed through to javac
+	 * @param path Directory to write the processed sources to, empty to compile them
+	 * @return If the build succeeded
+	 */
+	private static boolean build (GrandeCompiler compiler, List<Path> files, List<String> options, String path)
+	{
+		if (files.isEmpty ())
+			return true;
+
+		GrandeCompiler.Result result = compiler.compile (files, options, path.isEmpty () ? null : Paths.get (path));
+		for (Diagnostic<? extends JavaFileObject> d : result.getDiagnostics ())
+			System.out.println (d);
+
+		return result.isSuccess ();
+	}
+
+	/**
+	 * Compiles the files then keeps recompiling them as they change.
+	 * The compiler keeps parsed sources between builds so only the files that changed are parsed and generated again,
+	 * but javac is run on all the files every build.
+	 * Saves that arrive close together are debounced into a single build.
+	 *
+	 * @param compiler Compiler to use, kept warm between builds
+	 * @param files Files to compile, new files created in their directories are picked up too
+	 * @param options Options passed through to javac
+	 * @param path Directory to write the processed sources to, empty to compile them
+	 */
+	private static void watch (GrandeCompiler compiler, List<Path> files, List<String> options, String path)
+	{
+		Set<Path> inputs = new LinkedHashSet<> ();
+		Set<Path> roots = new HashSet<> ();
+		for (Path file : files)
 		{
-			// Compile resulting sources
-			task = compiler.getTask(null, null, null, options, null, sources);
-			task.call();
-		} else
+			Path input = file.toAbsolutePath ().normalize ();
+			inputs.add (input);
+			roots.add (input.getParent ());
+		}
+
+		try (WatchService watcher = FileSystems.getDefault ().newWatchService ())
 		{
-			for (JavaFileObject source : sources)
-				try
-				{
-					Files.createDirectories (Paths.get (path));
-					Files.write(Paths.get(path, source.getName ()), source.getCharContent (true).toString ().getBytes());
-				} catch (IOException e)
+			for (Path root : roots)
+				root.register (watcher, StandardWatchEventKinds.ENTRY_CREATE,
+					StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+
+			Path cwd = Paths.get ("").toAbsolutePath ();
+			Set<Path> changed = new HashSet<> ();
+			while (true)
+			{
+				for (Path file : changed)
+					if (Files.exists (file))
+						inputs.add (file);
+					else
+						inputs.remove (file);
+				changed.clear ();
+
+				List<Path> sources = new LinkedList<> ();
+				for (Path file : inputs)
+					sources.add (cwd.relativize (file));
+
+				if (build (compiler, sources, options, path))
+					System.out.println ("Compiled "+sources.size ()+" files. Watching for changes.");
+				else
+					System.out.println ("Build of "+sources.size ()+" files failed. Watching for changes.");
+
+				// Wait for a change then keep collecting until saves stop arriving
+				while (changed.isEmpty ())
 				{
-					System.out.println (e);
+					WatchKey key = watcher.take ();
+					do
+					{
+						Path root = (Path) key.watchable ();
+						for (WatchEvent<?> event : key.pollEvents ())
+						{
+							if (event.kind () == StandardWatchEventKinds.OVERFLOW)
+							{
+								changed.addAll (inputs);
+								continue;
+							}
+
+							Path file = root.resolve ((Path) event.context ());
+							if (file.toString ().endsWith (".java"))
+								changed.add (file);
+						}
+						key.reset ();
+					} while ((key = watcher.poll (DEBOUNCE, TimeUnit.MILLISECONDS)) != null);
 				}
+			}
+		}
+		catch (IOException e)
+		{
+			System.out.println (e);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread ().interrupt ();
 		}
-
 	}
 
 	/**
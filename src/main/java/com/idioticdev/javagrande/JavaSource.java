@@ -5,6 +5,7 @@ import javax.tools.SimpleJavaFileObject;
 import javax.tools.JavaFileObject.Kind;
 
 import com.github.javaparser.ast.CompilationUnit;
+import com.github.javaparser.ast.visitor.CloneVisitor;
 
 /**
  * Wraps a {@link CompilationUnit} and {@link CodeVisitor} for compilation.
@@ -27,6 +28,32 @@ class JavaSource extends SimpleJavaFileObject
 		this.cu = cu;
 	}
 
+	/**
+	 * @param uri Location of the original source, used when reporting errors
+	 * @param cu AST to compile
+	 * @param visitor Visitor used to build the AST
+	 */
+	public JavaSource(URI uri, CompilationUnit cu, CodeVisitor visitor)
+	{
+		super(uri, Kind.SOURCE);
+		this.visitor = visitor;
+		this.cu = cu;
+	}
+
+	/**
+	 * @return Source with a copy of the AST, resolving errors in one leaves the other as it was
+	 */
+	public JavaSource copy ()
+	{
+		CompilationUnit copy = (CompilationUnit) new CloneVisitor ().visit (cu, null);
+		return new JavaSource (toUri (), copy, visitor.copy (cu, copy));
+	}
+
+	public CompilationUnit getCompilationUnit ()
+	{
+		return cu;
+	}
+
 	public CodeVisitor getVisitor ()
 	{
 		return visitor;
@@ -3,15 +3,22 @@ package com.idioticdev.javagrande;
 import com.github.javaparser.ast.DocumentableNode;
 import com.github.javaparser.ast.body.BodyDeclaration;
 import com.github.javaparser.ast.body.MethodDeclaration;
+import com.github.javaparser.ast.body.ModifierSet;
+import com.github.javaparser.ast.body.TypeDeclaration;
 import com.github.javaparser.ast.comments.JavadocComment;
 import com.github.javaparser.ast.expr.AnnotationExpr;
 import com.github.javaparser.ast.expr.Expression;
+import com.github.javaparser.ast.expr.NameExpr;
+import com.github.javaparser.ast.expr.QualifiedNameExpr;
+import com.github.javaparser.ast.type.PrimitiveType;
 import com.github.javaparser.ast.type.Type;
 import com.github.javaparser.ast.visitor.GenericVisitor;
 import com.github.javaparser.ast.visitor.VoidVisitor;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 public final class PropertyDeclaration extends BodyDeclaration implements DocumentableNode
 {
@@ -20,19 +27,21 @@ public final class PropertyDeclaration extends BodyDeclaration implements Docume
 	private MethodDeclaration set;
 	private MethodDeclaration get;
 	private Expression defaultVal;
+	private Map<String, Expression> options = Collections.emptyMap ();
 
 	public PropertyDeclaration() {}
 
-	public PropertyDeclaration(Type type, String name, MethodDeclaration get, MethodDeclaration set, Expression defaultVal)
+	public PropertyDeclaration(Type type, String name, MethodDeclaration get, MethodDeclaration set, Expression defaultVal, Map<String, Expression> options)
 	{
 		setType(type);
 		setName(name);
 		setSet(set);
 		setGet(get);
 		setDefault (defaultVal);
+		setOptions (options);
 	}
 
-	public PropertyDeclaration(int beginLine, int beginColumn, int endLine, int endColumn, Type type, String name, MethodDeclaration get, MethodDeclaration set, Expression defaultVal)
+	public PropertyDeclaration(int beginLine, int beginColumn, int endLine, int endColumn, Type type, String name, MethodDeclaration get, MethodDeclaration set, Expression defaultVal, Map<String, Expression> options)
 	{
 		super(beginLine, beginColumn, endLine, endColumn, null);
 		setType(type);
@@ -40,6 +49,161 @@ public final class PropertyDeclaration extends BodyDeclaration implements Docume
 		setSet(set);
 		setGet(get);
 		setDefault (defaultVal);
+		setOptions (options);
+	}
+
+	/**
+	 * Checks an option given after the get and set blocks, like {@code changed = equals}.
+	 * Known options:
+	 * <ul>
+	 * <li>changed notifies observers only when the value changes. Values are compared with == or, given
+	 * changed = equals, with equals. changed = identity is the same as changed.</li>
+	 * <li>access reads and writes the backing field through a VarHandle with the given access mode:
+	 * plain, opaque, acquire (reads acquire, writes release) or volatile. Also generates compareAndSet and getAndSet methods.</li>
+	 * <li>lazy = expression initializes the property on first access instead of when the object is created.
+	 * Static lazy properties are read only.</li>
+	 * <li>threadsafe makes the lazy initialization safe when the property is first used from several threads.</li>
+	 * <li>async calls the observers on another thread, in order. async = executor uses the given Executor
+	 * instead of the default from PropertyDispatcher.</li>
+	 * <li>weak keeps the observers added with the add method through weak references,
+	 * so they do not keep their objects alive.</li>
+	 * <li>compute = expression derives the property from other properties of the class. The value is cached
+	 * until one of the properties it reads is set. Computed properties have no setter.</li>
+	 * <li>compact keeps the observers of the property in a table shared by the compact properties of the object,
+	 * allocated when the first observer is added, instead of in fields of their own. Observers are only added through
+	 * the add method.</li>
+	 * <li>global generates static add and remove methods for observers of the property of every instance.</li>
+	 * <li>journal appends every write to the default PropertyJournal. journal = expression uses the given one.</li>
+	 * <li>readonly makes the field final, it is set by the default or in the constructors. There is no setter and
+	 * there are no observers. Static read only properties need a default.</li>
+	 * <li>offheap stores a primitive property in a record of a direct buffer shared by the objects of the class
+	 * instead of a field, objects become handles to their record.</li>
+	 * <li>columnar adds the property as a column of the class's table class, NameTable.</li>
+	 * <li>increment makes a long or int property a counter, striped so threads can count at once without contending.
+	 * There is no setter, incrementName and addName count and resetName returns the count and starts over. Observers
+	 * are notified about every 1024 counts, increment = n notifies about every n and increment = 0 never.</li>
+	 * <li>dirty sets the property's bit in a mask of its object when it is written.</li>
+	 * <li>codec encodes the property in the writeTo and readFrom methods of its class. Primitives, strings and enums
+	 * are known, codec = expression encodes other types with the given PropertyCodecs.Codec.</li>
+	 * </ul>
+	 *
+	 * @param name Name of the option
+	 * @param value Value of the option, null when none was given
+	 * @return Why the option is invalid or null if it is valid
+	 */
+	public static String checkOption (String name, Expression value)
+	{
+		switch (name)
+		{
+			case "changed":
+				if (value == null || isName (value, "identity", "equals"))
+					return null;
+				return "changed must be identity or equals";
+			case "access":
+				if (isName (value, "plain", "opaque", "acquire", "volatile"))
+					return null;
+				return "access must be plain, opaque, acquire or volatile";
+			case "lazy":
+				if (value != null)
+					return null;
+				return "lazy needs an expression to initialize the property with";
+			case "async":
+			case "journal":
+			case "increment":
+			case "codec":
+				return null;
+			case "compute":
+				if (value != null)
+					return null;
+				return "compute needs an expression to derive the property from";
+			case "compact":
+			case "global":
+			case "dirty":
+			case "readonly":
+			case "offheap":
+			case "columnar":
+			case "weak":
+				if (value == null)
+					return null;
+				return name+" does not take a value";
+			case "threadsafe":
+				if (value == null)
+					return null;
+				return "threadsafe does not take a value";
+			default:
+				return "Unknown property option "+name;
+		}
+	}
+
+	/**
+	 * Checks the options of a property go together.
+	 * Checked again once the property is in its class, as some options do not fit inner classes.
+	 *
+	 * @return Why the options are invalid or null if they are valid
+	 */
+	public String checkOptions ()
+	{
+		if (hasOption ("lazy") && defaultVal != null)
+			return "A property can not have both a default and a lazy value";
+		if (hasOption ("threadsafe") && !hasOption ("lazy"))
+			return "threadsafe only applies to lazy properties";
+		if (hasOption ("lazy") && isStatic () && (hasOption ("access") || hasOption ("changed") || hasOption ("async") || hasOption ("weak")))
+			return "Static lazy properties are read only";
+		if (hasOption ("readonly") && (options.size () > 1 || set.getBody () != null))
+			return "A read only property can only have a default and a get block";
+		if (hasOption ("readonly") && isStatic () && (defaultVal == null || get.getBody () != null))
+			return "A static read only property needs a default and can not have a get block";
+		if (hasOption ("offheap") && !(type instanceof PrimitiveType))
+			return "Only primitive properties can be off heap";
+		if (hasOption ("offheap") && (isStatic () || get.getBody () != null || set.getBody () != null))
+			return "Off heap properties can not be static or have get or set blocks";
+		if (hasOption ("offheap") && (hasOption ("lazy") || hasOption ("access") || hasOption ("compute") || hasOption ("readonly") || hasOption ("journal")))
+			return "Off heap properties can not be lazy, computed, read only, journaled or have an access mode";
+		if (hasOption ("columnar") && (isStatic () || hasOption ("compute")))
+			return "Only instance properties with a setter can be columnar";
+		if (hasOption ("increment") && !type.toString ().equals ("long") && !type.toString ().equals ("int"))
+			return "Only long and int properties can be counters";
+		if (hasOption ("increment") && (isStatic () || get.getBody () != null || set.getBody () != null))
+			return "Counters can not be static or have get or set blocks";
+		if (hasOption ("increment") && (hasOption ("lazy") || hasOption ("access") || hasOption ("compute") || hasOption ("readonly")
+			|| hasOption ("offheap") || hasOption ("columnar") || hasOption ("journal") || hasOption ("dirty")))
+			return "Counters can not be lazy, computed, read only, off heap, columnar, journaled, dirty or have an access mode";
+		if (hasOption ("compute") && (defaultVal != null || hasOption ("lazy") || hasOption ("access")))
+			return "A computed property can not have a default, lazy value or access mode";
+		if (hasOption ("compute") && (get.getBody () != null || set.getBody () != null))
+			return "A computed property can not have get or set blocks";
+		if (hasOption ("compute") && isStatic ())
+			return "Computed properties can not be static";
+		if ((hasOption ("compact") || hasOption ("global")) && isStatic ())
+			return "Static properties can not be compact or global";
+		if (hasOption ("global") && getParentNode () instanceof TypeDeclaration && !CodeVisitor.isStatic ((TypeDeclaration) getParentNode ()))
+			return "Properties of inner classes can not be global";
+		if (hasOption ("offheap") && getParentNode () instanceof TypeDeclaration && !CodeVisitor.isStatic ((TypeDeclaration) getParentNode ()))
+			return "Properties of inner classes can not be off heap";
+		if ((hasOption ("journal") || hasOption ("dirty")) && (isStatic () || hasOption ("compute")))
+			return "Only instance properties with a setter can be journaled or dirty";
+		if (hasOption ("codec") && (isStatic () || hasOption ("compute") || hasOption ("readonly") || hasOption ("increment")))
+			return "Only instance properties with a setter can be encoded";
+
+		return null;
+	}
+
+	/**
+	 * @return If the getter or setter is static
+	 */
+	public boolean isStatic ()
+	{
+		return ModifierSet.isStatic (get.getModifiers ()) || ModifierSet.isStatic (set.getModifiers ());
+	}
+
+	private static boolean isName (Expression value, String... names)
+	{
+		if (value instanceof NameExpr && !(value instanceof QualifiedNameExpr))
+			for (String name : names)
+				if (name.equals (((NameExpr) value).getName ()))
+					return true;
+
+		return false;
 	}
 
 	@Override
@@ -103,6 +267,30 @@ public final class PropertyDeclaration extends BodyDeclaration implements Docume
 		this.defaultVal = defaultVal;
 	}
 
+	public Map<String, Expression> getOptions ()
+	{
+		return options;
+	}
+
+	public void setOptions (Map<String, Expression> options)
+	{
+		this.options = options;
+	}
+
+	public boolean hasOption (String name)
+	{
+		return options.containsKey (name);
+	}
+
+	/**
+	 * @return Value of the option as written, null when it has no value or is not set
+	 */
+	public String getOption (String name)
+	{
+		Expression value = options.get (name);
+		return value != null ? value.toString () : null;
+	}
+
 	@Override
 	public void setJavaDoc(JavadocComment javadocComment) {
 		this.javadocComment = javadocComment;
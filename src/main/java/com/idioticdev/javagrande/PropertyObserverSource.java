@@ -1,16 +1,575 @@
 package com.idioticdev.javagrande;
 
 import java.net.URI;
+import java.util.LinkedList;
+import java.util.List;
 import javax.tools.SimpleJavaFileObject;
 import javax.tools.JavaFileObject.Kind;
 
 import com.github.javaparser.ast.CompilationUnit;
 
+/**
+ * Source of an observer interface compiled along with the user's code.
+ * <p>
+ * Besides the generic PropertyObserver there is one interface per primitive type, IntPropertyObserver and so on,
+ * so setters of primitive properties can notify without boxing. Each extends PropertyObserver of the boxed type
+ * so it can still be passed anywhere a PropertyObserver is expected.
+ * GlobalPropertyObserver also gets the object that changed, it observes a property of every instance of a class,
+ * and has a primitive variant for each primitive type as well, GlobalIntPropertyObserver and so on.
+ * PropertyObservers holds the helpers used by the generated add and remove observer methods
+ * while PropertyBatch defers notifications during a batch and PropertyDispatcher runs those of async properties.
+ * PropertyJournal records the writes of journaled properties and PropertyTable describes the properties of a class.
+ * PropertyCodecs encodes the reference properties of the generated binary codec and PropertyStore holds off heap properties.
+ * PropertyCounter backs counter properties.
+ */
 class PropertyObserverSource extends SimpleJavaFileObject
 {
+	private static final String[][] PRIMITIVES = {
+		{"boolean", "Boolean"},
+		{"char", "Char"},
+		{"byte", "Byte"},
+		{"short", "Short"},
+		{"int", "Int"},
+		{"long", "Long"},
+		{"float", "Float"},
+		{"double", "Double"}
+	};
+
+	/**
+	 * Copy on write helpers for the observer arrays of properties. Arrays are never modified once published,
+	 * null is an empty array. removeWeak also drops the references that were cleared.
+	 * Global observers are the constant target of a call site, get reads them and set relinks it.
+	 */
+	private static final String OBSERVERS = "public final class PropertyObservers {\n"
+		+ "	private PropertyObservers () {}\n"
+		+ "	@SuppressWarnings(\"unchecked\")\n"
+		+ "	public static <T> T[] add (T[] observers, T observer, Class<?> type) {\n"
+		+ "		java.util.Objects.requireNonNull (observer);\n"
+		+ "		if (observers == null) {\n"
+		+ "			T[] added = (T[]) java.lang.reflect.Array.newInstance (type, 1);\n"
+		+ "			added[0] = observer;\n"
+		+ "			return added;\n		}\n"
+		+ "		T[] added = java.util.Arrays.copyOf (observers, observers.length+1);\n"
+		+ "		added[observers.length] = observer;\n"
+		+ "		return added;\n	}\n"
+		+ "	public static <T> T[] remove (T[] observers, T observer) {\n"
+		+ "		if (observers != null)\n"
+		+ "			for (int i = 0; i < observers.length; i++)\n"
+		+ "				if (observers[i] == observer) {\n"
+		+ "					if (observers.length == 1)\n"
+		+ "						return null;\n"
+		+ "					T[] removed = java.util.Arrays.copyOf (observers, observers.length-1);\n"
+		+ "					System.arraycopy (observers, i+1, removed, i, observers.length-i-1);\n"
+		+ "					return removed;\n				}\n"
+		+ "		return observers;\n	}\n"
+		+ "	public static <T> java.lang.ref.WeakReference<T>[] removeWeak (java.lang.ref.WeakReference<T>[] observers, T observer) {\n"
+		+ "		if (observers == null) return null;\n"
+		+ "		int kept = 0;\n"
+		+ "		java.lang.ref.WeakReference<T>[] removed = observers.clone ();\n"
+		+ "		for (java.lang.ref.WeakReference<T> reference : observers) {\n"
+		+ "			T referent = reference.get ();\n"
+		+ "			if (referent != null && referent != observer) removed[kept++] = reference;\n		}\n"
+		+ "		if (kept == observers.length) return observers;\n"
+		+ "		return kept == 0 ? null : java.util.Arrays.copyOf (removed, kept);\n	}\n"
+		+ "	public static java.lang.invoke.MutableCallSite site () {\n"
+		+ "		return new java.lang.invoke.MutableCallSite (java.lang.invoke.MethodHandles.constant (Object[].class, null));\n	}\n"
+		+ "	public static Object[] get (java.lang.invoke.MethodHandle observers) {\n"
+		+ "		try { return (Object[]) observers.invokeExact (); }\n"
+		+ "		catch (Throwable e) { throw new IllegalStateException (e); }\n	}\n"
+		+ "	public static void set (java.lang.invoke.MutableCallSite site, Object[] observers) {\n"
+		+ "		site.setTarget (java.lang.invoke.MethodHandles.constant (Object[].class, observers));\n"
+		+ "		java.lang.invoke.MutableCallSite.syncAll (new java.lang.invoke.MutableCallSite[] { site });\n	}\n}";
+
+	/**
+	 * Defers notifications while a batch runs on the current thread and delivers them once per property when it ends.
+	 * Changes are kept in arrays reused by every batch of the thread, with a hash table to find repeated changes.
+	 * Only threads that batched have one. An observer that throws does not stop the others, the first failure is
+	 * thrown once all changes are delivered.
+	 */
+	private static final String BATCH = "public final class PropertyBatch {\n"
+		+ "	public interface Flusher { void flush (Object target, long old, Object oldRef); }\n"
+		+ "	private static final ThreadLocal<PropertyBatch> CURRENT = new ThreadLocal<> ();\n"
+		+ "	private int depth, size;\n"
+		+ "	private boolean flushing;\n"
+		+ "	private Object[] targets = new Object[16];\n"
+		+ "	private Flusher[] flushers = new Flusher[16];\n"
+		+ "	private long[] olds = new long[16];\n"
+		+ "	private Object[] oldRefs = new Object[16];\n"
+		+ "	private int[] table = new int[32];\n"
+		+ "	private PropertyBatch () {}\n"
+		+ "	public static void batch (Runnable task) {\n"
+		+ "		PropertyBatch batch = CURRENT.get ();\n"
+		+ "		if (batch == null || batch.flushing) {\n"
+		+ "			batch = new PropertyBatch ();\n"
+		+ "			CURRENT.set (batch);\n		}\n"
+		+ "		batch.depth++;\n"
+		+ "		try { task.run (); }\n"
+		+ "		finally {\n"
+		+ "			if (--batch.depth == 0) batch.flush ();\n		}\n	}\n"
+		+ "	public static boolean isBatching () {\n"
+		+ "		PropertyBatch batch = CURRENT.get ();\n"
+		+ "		return batch != null && batch.depth != 0;\n	}\n"
+		+ "	public static boolean defer (Object target, Flusher flusher, long old, Object oldRef) {\n"
+		+ "		PropertyBatch batch = CURRENT.get ();\n"
+		+ "		if (batch == null || batch.depth == 0) return false;\n"
+		+ "		batch.add (target, flusher, old, oldRef);\n"
+		+ "		return true;\n	}\n"
+		+ "	private void add (Object target, Flusher flusher, long old, Object oldRef) {\n"
+		+ "		if (size*2 >= table.length) grow ();\n"
+		+ "		int i = slot (target, flusher);\n"
+		+ "		for (; table[i] != 0; i = (i+1) & (table.length-1))\n"
+		+ "			if (targets[table[i]-1] == target && flushers[table[i]-1] == flusher) return;\n"
+		+ "		table[i] = size+1;\n"
+		+ "		targets[size] = target;\n"
+		+ "		flushers[size] = flusher;\n"
+		+ "		olds[size] = old;\n"
+		+ "		oldRefs[size++] = oldRef;\n	}\n"
+		+ "	private int slot (Object target, Flusher flusher) {\n"
+		+ "		int h = System.identityHashCode (target)*31 + System.identityHashCode (flusher);\n"
+		+ "		return (h ^ (h >>> 16)) & (table.length-1);\n	}\n"
+		+ "	private void grow () {\n"
+		+ "		if (size == targets.length) {\n"
+		+ "			targets = java.util.Arrays.copyOf (targets, size*2);\n"
+		+ "			flushers = java.util.Arrays.copyOf (flushers, size*2);\n"
+		+ "			olds = java.util.Arrays.copyOf (olds, size*2);\n"
+		+ "			oldRefs = java.util.Arrays.copyOf (oldRefs, size*2);\n		}\n"
+		+ "		table = new int[table.length*2];\n"
+		+ "		for (int e = 0; e < size; e++) {\n"
+		+ "			int i = slot (targets[e], flushers[e]);\n"
+		+ "			while (table[i] != 0) i = (i+1) & (table.length-1);\n"
+		+ "			table[i] = e+1;\n		}\n	}\n"
+		+ "	private void flush () {\n"
+		+ "		flushing = true;\n"
+		+ "		Throwable failure = null;\n"
+		+ "		try {\n"
+		+ "			for (int i = 0; i < size; i++) {\n"
+		+ "				try { flushers[i].flush (targets[i], olds[i], oldRefs[i]); }\n"
+		+ "				catch (RuntimeException | Error e) {\n"
+		+ "					if (failure == null) failure = e;\n"
+		+ "					else failure.addSuppressed (e);\n				}\n			}\n"
+		+ "		} finally {\n"
+		+ "			java.util.Arrays.fill (targets, 0, size, null);\n"
+		+ "			java.util.Arrays.fill (flushers, 0, size, null);\n"
+		+ "			java.util.Arrays.fill (oldRefs, 0, size, null);\n"
+		+ "			java.util.Arrays.fill (table, 0);\n"
+		+ "			size = 0;\n"
+		+ "			flushing = false;\n"
+		+ "			CURRENT.set (this);\n		}\n"
+		+ "		if (failure instanceof Error) throw (Error) failure;\n"
+		+ "		if (failure != null) throw (RuntimeException) failure;\n	}\n}";
+
+	/**
+	 * Runs observers of async properties. Each property of each object has a lane, a bounded queue drained by one task
+	 * at a time so its observers run in order. Writers wait while the lane is full.
+	 */
+	private static final String DISPATCHER = "public final class PropertyDispatcher {\n"
+		+ "	private static volatile java.util.concurrent.Executor executor;\n"
+		+ "	private static volatile int capacity = 1024;\n"
+		+ "	private PropertyDispatcher () {}\n"
+		+ "	public static void setExecutor (java.util.concurrent.Executor executor) {\n"
+		+ "		PropertyDispatcher.executor = executor;\n	}\n"
+		+ "	public static void setCapacity (int capacity) {\n"
+		+ "		PropertyDispatcher.capacity = capacity;\n	}\n"
+		+ "	public static java.util.concurrent.Executor getExecutor () {\n"
+		+ "		java.util.concurrent.Executor e = executor;\n"
+		+ "		if (e != null) return e;\n"
+		+ "		synchronized (PropertyDispatcher.class) {\n"
+		+ "			if (executor == null) {\n"
+		+ "				try {\n"
+		+ "					executor = (java.util.concurrent.Executor) java.util.concurrent.Executors.class.getMethod (\"newVirtualThreadPerTaskExecutor\").invoke (null);\n"
+		+ "				} catch (ReflectiveOperationException ex) {\n"
+		+ "					executor = java.util.concurrent.Executors.newCachedThreadPool (r -> {\n"
+		+ "						Thread t = new Thread (r, \"property-dispatcher\");\n"
+		+ "						t.setDaemon (true);\n"
+		+ "						return t;\n					});\n				}\n			}\n"
+		+ "			return executor;\n		}\n	}\n"
+		+ "	public static final class Lane implements Runnable {\n"
+		+ "		private final java.util.concurrent.Executor executor;\n"
+		+ "		private final java.util.concurrent.BlockingQueue<Runnable> queue = new java.util.concurrent.LinkedBlockingQueue<> (capacity);\n"
+		+ "		private final java.util.concurrent.atomic.AtomicBoolean scheduled = new java.util.concurrent.atomic.AtomicBoolean ();\n"
+		+ "		private volatile Thread drainer;\n"
+		+ "		public Lane () { this (null); }\n"
+		+ "		public Lane (java.util.concurrent.Executor executor) { this.executor = executor; }\n"
+		+ "		public void submit (Runnable task) {\n"
+		+ "			if (drainer == Thread.currentThread ()) {\n"
+		+ "				if (!queue.offer (task)) task.run ();\n"
+		+ "			} else {\n"
+		+ "				try { queue.put (task); }\n"
+		+ "				catch (InterruptedException e) {\n"
+		+ "					Thread.currentThread ().interrupt ();\n"
+		+ "					task.run ();\n"
+		+ "					return;\n				}\n			}\n"
+		+ "			schedule ();\n		}\n"
+		+ "		private void schedule () {\n"
+		+ "			if (scheduled.compareAndSet (false, true))\n"
+		+ "				(executor != null ? executor : getExecutor ()).execute (this);\n		}\n"
+		+ "		public void run () {\n"
+		+ "			drainer = Thread.currentThread ();\n"
+		+ "			try {\n"
+		+ "				for (Runnable task; (task = queue.poll ()) != null; ) {\n"
+		+ "					try { task.run (); }\n"
+		+ "					catch (RuntimeException e) { drainer.getUncaughtExceptionHandler ().uncaughtException (drainer, e); }\n"
+		+ "				}\n"
+		+ "			} finally {\n"
+		+ "				drainer = null;\n"
+		+ "				scheduled.set (false);\n			}\n"
+		+ "			if (!queue.isEmpty ()) schedule ();\n		}\n	}\n}";
+
+	/**
+	 * Names, types and accessors of the properties of a class, looked up by name or ordinal without reflection.
+	 */
+	private static final String DESCRIPTOR = "public final class PropertyDescriptor<S, T> {\n"
+		+ "	private final String name;\n"
+		+ "	private final Class<?> type;\n"
+		+ "	private final int ordinal;\n"
+		+ "	private final java.util.function.Function<S, T> getter;\n"
+		+ "	private final java.util.function.BiConsumer<S, T> setter;\n"
+		+ "	public PropertyDescriptor (String name, Class<?> type, int ordinal, java.util.function.Function<S, T> getter, java.util.function.BiConsumer<S, T> setter) {\n"
+		+ "		this.name = name;\n"
+		+ "		this.type = type;\n"
+		+ "		this.ordinal = ordinal;\n"
+		+ "		this.getter = getter;\n"
+		+ "		this.setter = setter;\n	}\n"
+		+ "	public String getName () { return name; }\n"
+		+ "	public Class<?> getType () { return type; }\n"
+		+ "	public int getOrdinal () { return ordinal; }\n"
+		+ "	public boolean isReadOnly () { return setter == null; }\n"
+		+ "	public T get (S source) {\n"
+		+ "		return getter.apply (source);\n	}\n"
+		+ "	public void set (S source, T value) {\n"
+		+ "		if (setter == null) throw new UnsupportedOperationException (name+\" is read only\");\n"
+		+ "		setter.accept (source, value);\n	}\n"
+		+ "	public String toString () { return name; }\n}";
+
+	private static final String TABLE = "public final class PropertyTable<S> implements Iterable<PropertyDescriptor<S, ?>> {\n"
+		+ "	private final java.util.List<PropertyDescriptor<S, ?>> properties;\n"
+		+ "	private final java.util.Map<String, PropertyDescriptor<S, ?>> names;\n"
+		+ "	public PropertyTable (java.util.List<PropertyDescriptor<S, ?>> properties) {\n"
+		+ "		this.properties = java.util.Collections.unmodifiableList (new java.util.ArrayList<> (properties));\n"
+		+ "		names = new java.util.HashMap<> (properties.size ()*2);\n"
+		+ "		for (PropertyDescriptor<S, ?> property : this.properties) names.put (property.getName (), property);\n	}\n"
+		+ "	public int size () { return properties.size (); }\n"
+		+ "	@SuppressWarnings(\"unchecked\")\n"
+		+ "	public <T> PropertyDescriptor<S, T> get (int ordinal) {\n"
+		+ "		return (PropertyDescriptor<S, T>) properties.get (ordinal);\n	}\n"
+		+ "	@SuppressWarnings(\"unchecked\")\n"
+		+ "	public <T> PropertyDescriptor<S, T> get (String name) {\n"
+		+ "		return (PropertyDescriptor<S, T>) names.get (name);\n	}\n"
+		+ "	public java.util.Iterator<PropertyDescriptor<S, ?>> iterator () {\n"
+		+ "		return properties.iterator ();\n	}\n}";
+
+	/**
+	 * Codecs for the reference properties written by the generated writeTo and readFrom methods.
+	 * Strings and enums have codecs of their own, other types are given one with the codec option.
+	 * Every value is preceded by a byte telling if it is null, enums are written as their ordinal or -1 for null.
+	 * inherited finds the codec a subclass's codec calls first.
+	 */
+	private static final String CODECS = "public final class PropertyCodecs {\n"
+		+ "	public interface Codec<T> {\n"
+		+ "		void write (java.nio.ByteBuffer buffer, T value);\n"
+		+ "		T read (java.nio.ByteBuffer buffer);\n	}\n"
+		+ "	public static final Codec<String> STRING = new Codec<String> () {\n"
+		+ "		public void write (java.nio.ByteBuffer buffer, String value) {\n"
+		+ "			byte[] bytes = value.getBytes (java.nio.charset.StandardCharsets.UTF_8);\n"
+		+ "			buffer.putInt (bytes.length).put (bytes);\n		}\n"
+		+ "		public String read (java.nio.ByteBuffer buffer) {\n"
+		+ "			byte[] bytes = new byte[buffer.getInt ()];\n"
+		+ "			buffer.get (bytes);\n"
+		+ "			return new String (bytes, java.nio.charset.StandardCharsets.UTF_8);\n		}\n	};\n"
+		+ "	private static final ClassValue<Object[]> CONSTANTS = new ClassValue<Object[]> () {\n"
+		+ "		protected Object[] computeValue (Class<?> type) {\n"
+		+ "			return type.getEnumConstants ();\n		}\n	};\n"
+		+ "	private PropertyCodecs () {}\n"
+		+ "	public static <T> void write (java.nio.ByteBuffer buffer, T value, Codec<? super T> codec) {\n"
+		+ "		if (value == null) buffer.put ((byte) 0);\n"
+		+ "		else {\n"
+		+ "			buffer.put ((byte) 1);\n"
+		+ "			codec.write (buffer, value);\n		}\n	}\n"
+		+ "	public static <T> T read (java.nio.ByteBuffer buffer, Codec<T> codec) {\n"
+		+ "		return buffer.get () == 0 ? null : codec.read (buffer);\n	}\n"
+		+ "	public static <E extends Enum<E>> void writeEnum (java.nio.ByteBuffer buffer, E value) {\n"
+		+ "		buffer.putInt (value == null ? -1 : value.ordinal ());\n	}\n"
+		+ "	public static <E extends Enum<E>> E readEnum (java.nio.ByteBuffer buffer, Class<E> type) {\n"
+		+ "		int ordinal = buffer.getInt ();\n"
+		+ "		return ordinal < 0 ? null : type.cast (CONSTANTS.get (type)[ordinal]);\n	}\n"
+		+ "	public static java.lang.invoke.MethodHandle inherited (java.lang.invoke.MethodHandles.Lookup lookup, Class<?> type, String name) {\n"
+		+ "		try {\n"
+		+ "			return lookup.findSpecial (type.getSuperclass (), name, java.lang.invoke.MethodType.methodType (void.class, java.nio.ByteBuffer.class), type);\n"
+		+ "		} catch (NoSuchMethodException | IllegalAccessException e) {\n"
+		+ "			return null;\n		}\n	}\n"
+		+ "	public static RuntimeException unchecked (Throwable e) {\n"
+		+ "		if (e instanceof Error) throw (Error) e;\n"
+		+ "		return e instanceof RuntimeException ? (RuntimeException) e : new IllegalStateException (e);\n	}\n}";
+
+	/**
+	 * Records of the off heap properties of a class, in direct buffers of 65536 records each.
+	 * A slot numbers a record. Slots are taken from a counter without locking until some are freed, freed slots
+	 * are zeroed and kept on a list to be handed out again. The store tracks nothing per object, records are only
+	 * freed when their object is released.
+	 */
+	private static final String STORE = "public final class PropertyStore {\n"
+		+ "	private static final int SHIFT = 16;\n"
+		+ "	private static final int MASK = (1 << SHIFT)-1;\n"
+		+ "	private final int size;\n"
+		+ "	private volatile java.nio.ByteBuffer[] chunks = new java.nio.ByteBuffer[0];\n"
+		+ "	private final java.util.concurrent.atomic.AtomicLong next = new java.util.concurrent.atomic.AtomicLong ();\n"
+		+ "	private long[] free = new long[16];\n"
+		+ "	private volatile int freed;\n"
+		+ "	public PropertyStore (int size) {\n"
+		+ "		if (size <= 0 || size % 8 != 0 || size > Integer.MAX_VALUE >> SHIFT) throw new IllegalArgumentException (\"Invalid record size \"+size);\n"
+		+ "		this.size = size;\n	}\n"
+		+ "	public long allocate () {\n"
+		+ "		if (freed > 0) {\n"
+		+ "			synchronized (this) {\n"
+		+ "				if (freed > 0) return free[--freed];\n			}\n		}\n"
+		+ "		long slot = next.getAndIncrement ();\n"
+		+ "		if (slot >>> SHIFT >= chunks.length) grow ((int) (slot >>> SHIFT));\n"
+		+ "		return slot;\n	}\n"
+		+ "	private synchronized void grow (int chunk) {\n"
+		+ "		if (chunk < chunks.length) return;\n"
+		+ "		java.nio.ByteBuffer[] grown = java.util.Arrays.copyOf (chunks, chunk+1);\n"
+		+ "		for (int i = chunks.length; i <= chunk; i++)\n"
+		+ "			grown[i] = java.nio.ByteBuffer.allocateDirect (size << SHIFT).order (java.nio.ByteOrder.nativeOrder ());\n"
+		+ "		chunks = grown;\n	}\n"
+		+ "	public synchronized void free (long slot) {\n"
+		+ "		for (int i = 0; i < size; i += 8) putLong (slot, i, 0L);\n"
+		+ "		if (freed == free.length) free = java.util.Arrays.copyOf (free, freed*2);\n"
+		+ "		free[freed++] = slot;\n	}\n"
+		+ "	public synchronized long getAllocated () {\n"
+		+ "		return next.get ()-freed;\n	}\n"
+		+ "	public int getRecordSize () {\n"
+		+ "		return size;\n	}\n"
+		+ "	private java.nio.ByteBuffer chunk (long slot) {\n"
+		+ "		if (slot < 0) throw new IllegalStateException (\"Storage was released\");\n"
+		+ "		return chunks[(int) (slot >>> SHIFT)];\n	}\n"
+		+ "	private int index (long slot, int offset) {\n"
+		+ "		return (int) (slot & MASK)*size+offset;\n	}\n"
+		+ "	public byte getByte (long slot, int offset) { return chunk (slot).get (index (slot, offset)); }\n"
+		+ "	public void putByte (long slot, int offset, byte value) { chunk (slot).put (index (slot, offset), value); }\n"
+		+ "	public short getShort (long slot, int offset) { return chunk (slot).getShort (index (slot, offset)); }\n"
+		+ "	public void putShort (long slot, int offset, short value) { chunk (slot).putShort (index (slot, offset), value); }\n"
+		+ "	public char getChar (long slot, int offset) { return chunk (slot).getChar (index (slot, offset)); }\n"
+		+ "	public void putChar (long slot, int offset, char value) { chunk (slot).putChar (index (slot, offset), value); }\n"
+		+ "	public int getInt (long slot, int offset) { return chunk (slot).getInt (index (slot, offset)); }\n"
+		+ "	public void putInt (long slot, int offset, int value) { chunk (slot).putInt (index (slot, offset), value); }\n"
+		+ "	public long getLong (long slot, int offset) { return chunk (slot).getLong (index (slot, offset)); }\n"
+		+ "	public void putLong (long slot, int offset, long value) { chunk (slot).putLong (index (slot, offset), value); }\n"
+		+ "	public float getFloat (long slot, int offset) { return chunk (slot).getFloat (index (slot, offset)); }\n"
+		+ "	public void putFloat (long slot, int offset, float value) { chunk (slot).putFloat (index (slot, offset), value); }\n"
+		+ "	public double getDouble (long slot, int offset) { return chunk (slot).getDouble (index (slot, offset)); }\n"
+		+ "	public void putDouble (long slot, int offset, double value) { chunk (slot).putDouble (index (slot, offset), value); }\n"
+		+ "}";
+
+	/**
+	 * Striped counter backing counter properties, like LongAdder. Threads add to the cell picked by their id,
+	 * each cell padded to a cache line of its own. Adds that contend double the cells, up to twice the processors.
+	 * Fields in one class may be reordered, so the padding before the value is in a superclass and the padding after it
+	 * in a subclass, as superclass fields are laid out first.
+	 * add tells when its cell passed a multiple of the sample so observers are only notified that often.
+	 * The count starts at the initial value and sumThenReset starts it over there.
+	 */
+	private static final String COUNTER = "public final class PropertyCounter {\n"
+		+ "	private static final int MAX = Integer.highestOneBit (Runtime.getRuntime ().availableProcessors ()*2-1) << 1;\n"
+		+ "	private static final java.util.concurrent.atomic.AtomicLongFieldUpdater<Value> VALUE\n"
+		+ "		= java.util.concurrent.atomic.AtomicLongFieldUpdater.newUpdater (Value.class, \"value\");\n"
+		+ "	static class Padding {\n"
+		+ "		long p0, p1, p2, p3, p4, p5, p6;\n	}\n"
+		+ "	static class Value extends Padding {\n"
+		+ "		volatile long value;\n	}\n"
+		+ "	static final class Cell extends Value {\n"
+		+ "		long q0, q1, q2, q3, q4, q5, q6;\n	}\n"
+		+ "	private final long initial;\n"
+		+ "	private final long sample;\n"
+		+ "	private volatile Cell[] cells = { new Cell () };\n"
+		+ "	public PropertyCounter (long initial, long sample) {\n"
+		+ "		if (sample < 0) throw new IllegalArgumentException (\"Invalid sample \"+sample);\n"
+		+ "		this.initial = initial;\n"
+		+ "		this.sample = sample;\n"
+		+ "		cells[0].value = initial;\n	}\n"
+		+ "	public boolean add (long x) {\n"
+		+ "		Cell[] cells = this.cells;\n"
+		+ "		Cell cell = cells[index () & cells.length-1];\n"
+		+ "		long v = cell.value;\n"
+		+ "		if (!VALUE.compareAndSet (cell, v, v+x)) {\n"
+		+ "			if (cells.length < MAX) grow (cells);\n"
+		+ "			v = VALUE.getAndAdd (cell, x);\n		}\n"
+		+ "		return sample > 0 && (v+x)/sample != v/sample;\n	}\n"
+		+ "	public long sum () {\n"
+		+ "		long sum = 0;\n"
+		+ "		for (Cell cell : cells) sum += cell.value;\n"
+		+ "		return sum;\n	}\n"
+		+ "	public long sumThenReset () {\n"
+		+ "		long sum = 0;\n"
+		+ "		Cell[] cells = this.cells;\n"
+		+ "		for (int i = 0; i < cells.length; i++) sum += VALUE.getAndSet (cells[i], i == 0 ? initial : 0L);\n"
+		+ "		return sum;\n	}\n"
+		+ "	public long getInitial () {\n"
+		+ "		return initial;\n	}\n"
+		+ "	public int getCells () {\n"
+		+ "		return cells.length;\n	}\n"
+		+ "	private synchronized void grow (Cell[] cells) {\n"
+		+ "		if (this.cells != cells) return;\n"
+		+ "		Cell[] grown = java.util.Arrays.copyOf (cells, cells.length*2);\n"
+		+ "		for (int i = cells.length; i < grown.length; i++) grown[i] = new Cell ();\n"
+		+ "		this.cells = grown;\n	}\n"
+		+ "	private static int index () {\n"
+		+ "		return (int) (Thread.currentThread ().getId ()*0x9E3779B97F4A7C15L >>> 32);\n	}\n"
+		+ "}";
+
+	/**
+	 * Ring buffer of fixed size records in a memory mapped file, appended to by the setters of journaled properties.
+	 * The header holds the magic, record size, capacity and next sequence. Each record is its sequence plus one,
+	 * written last so a reader can tell it is complete, the instance and property ids, then the old and new value bits.
+	 * Another process may be writing, so a reader copies a record then checks its sequence again, like a seqlock.
+	 * The fences are VarHandle's where there is one, a volatile write otherwise.
+	 */
+	private static final String JOURNAL = "public final class PropertyJournal implements AutoCloseable {\n"
+		+ "	public static final int RECORD = 32;\n"
+		+ "	private static final int MAGIC = 0x4752444A;\n"
+		+ "	private static final int HEADER = 64;\n"
+		+ "	private static final java.util.concurrent.atomic.AtomicInteger IDS = new java.util.concurrent.atomic.AtomicInteger ();\n"
+		+ "	private static volatile PropertyJournal defaultJournal;\n"
+		+ "	private static final java.lang.invoke.MethodHandle ACQUIRE = fence (\"acquireFence\");\n"
+		+ "	private static final java.lang.invoke.MethodHandle RELEASE = fence (\"releaseFence\");\n"
+		+ "	private static volatile int barrier;\n"
+		+ "	private final java.nio.channels.FileChannel channel;\n"
+		+ "	private final java.nio.MappedByteBuffer buffer;\n"
+		+ "	private final int capacity;\n"
+		+ "	public interface Reader {\n"
+		+ "		void record (long sequence, int instance, int property, long oldBits, long newBits);\n	}\n"
+		+ "	private PropertyJournal (java.nio.channels.FileChannel channel, java.nio.MappedByteBuffer buffer, int capacity) {\n"
+		+ "		this.channel = channel;\n"
+		+ "		this.buffer = buffer;\n"
+		+ "		this.capacity = capacity;\n	}\n"
+		+ "	public static PropertyJournal open (java.nio.file.Path file, int capacity) throws java.io.IOException {\n"
+		+ "		java.nio.channels.FileChannel channel = java.nio.channels.FileChannel.open (file, java.nio.file.StandardOpenOption.READ,\n"
+		+ "			java.nio.file.StandardOpenOption.WRITE, java.nio.file.StandardOpenOption.CREATE);\n"
+		+ "		try {\n"
+		+ "			if (channel.size () >= HEADER) {\n"
+		+ "				java.nio.ByteBuffer header = java.nio.ByteBuffer.allocate (HEADER);\n"
+		+ "				channel.read (header, 0);\n"
+		+ "				if (header.getInt (0) != MAGIC || header.getInt (4) != RECORD)\n"
+		+ "					throw new java.io.IOException (file+\" is not a property journal\");\n"
+		+ "				capacity = header.getInt (8);\n"
+		+ "			}\n"
+		+ "			if (capacity <= 0 || capacity > (Integer.MAX_VALUE-HEADER) / RECORD)\n"
+		+ "				throw new IllegalArgumentException (\"Invalid journal capacity \"+capacity);\n"
+		+ "			java.nio.MappedByteBuffer buffer = channel.map (java.nio.channels.FileChannel.MapMode.READ_WRITE, 0, HEADER+capacity*RECORD);\n"
+		+ "			buffer.putInt (0, MAGIC);\n"
+		+ "			buffer.putInt (4, RECORD);\n"
+		+ "			buffer.putInt (8, capacity);\n"
+		+ "			return new PropertyJournal (channel, buffer, capacity);\n"
+		+ "		} catch (java.io.IOException | RuntimeException e) {\n"
+		+ "			channel.close ();\n"
+		+ "			throw e;\n		}\n	}\n"
+		+ "	public static PropertyJournal getDefault () {\n"
+		+ "		return defaultJournal;\n	}\n"
+		+ "	public static void setDefault (PropertyJournal journal) {\n"
+		+ "		defaultJournal = journal;\n	}\n"
+		+ "	public static int nextId () {\n"
+		+ "		return IDS.incrementAndGet ();\n	}\n"
+		+ "	public static int id (String type, String property) {\n"
+		+ "		return (type+\".\"+property).hashCode ();\n	}\n"
+		+ "	public static void append (PropertyJournal journal, int instance, int property, long oldBits, long newBits) {\n"
+		+ "		if (journal != null) journal.write (instance, property, oldBits, newBits);\n	}\n"
+		+ "	public synchronized void write (int instance, int property, long oldBits, long newBits) {\n"
+		+ "		long sequence = buffer.getLong (16);\n"
+		+ "		int at = HEADER+(int) (sequence % capacity)*RECORD;\n"
+		+ "		buffer.putLong (at, 0L);\n"
+		+ "		fence (RELEASE);\n"
+		+ "		buffer.putInt (at+8, instance);\n"
+		+ "		buffer.putInt (at+12, property);\n"
+		+ "		buffer.putLong (at+16, oldBits);\n"
+		+ "		buffer.putLong (at+24, newBits);\n"
+		+ "		fence (RELEASE);\n"
+		+ "		buffer.putLong (at, sequence+1);\n"
+		+ "		fence (RELEASE);\n"
+		+ "		buffer.putLong (16, sequence+1);\n	}\n"
+		+ "	public synchronized long read (long from, Reader reader) {\n"
+		+ "		long end = buffer.getLong (16);\n"
+		+ "		fence (ACQUIRE);\n"
+		+ "		for (long sequence = Math.max (Math.max (from, end-capacity), 0L); sequence < end; sequence++) {\n"
+		+ "			int at = HEADER+(int) (sequence % capacity)*RECORD;\n"
+		+ "			for (long stamp; (stamp = buffer.getLong (at)) == sequence+1; ) {\n"
+		+ "				fence (ACQUIRE);\n"
+		+ "				int instance = buffer.getInt (at+8);\n"
+		+ "				int property = buffer.getInt (at+12);\n"
+		+ "				long oldBits = buffer.getLong (at+16);\n"
+		+ "				long newBits = buffer.getLong (at+24);\n"
+		+ "				fence (ACQUIRE);\n"
+		+ "				if (buffer.getLong (at) != stamp) continue;\n"
+		+ "				reader.record (sequence, instance, property, oldBits, newBits);\n"
+		+ "				break;\n"
+		+ "			}\n"
+		+ "		}\n"
+		+ "		return end;\n	}\n"
+		+ "	private static java.lang.invoke.MethodHandle fence (String name) {\n"
+		+ "		try {\n"
+		+ "			return java.lang.invoke.MethodHandles.publicLookup ().findStatic (Class.forName (\"java.lang.invoke.VarHandle\"), name,\n"
+		+ "				java.lang.invoke.MethodType.methodType (void.class));\n"
+		+ "		} catch (ReflectiveOperationException e) {\n"
+		+ "			return null;\n		}\n	}\n"
+		+ "	private static void fence (java.lang.invoke.MethodHandle fence) {\n"
+		+ "		if (fence == null) barrier = 0;\n"
+		+ "		else try { fence.invokeExact (); }\n"
+		+ "		catch (Throwable e) { throw new IllegalStateException (e); }\n	}\n"
+		+ "	public synchronized long getSequence () {\n"
+		+ "		return buffer.getLong (16);\n	}\n"
+		+ "	public int getCapacity () {\n"
+		+ "		return capacity;\n	}\n"
+		+ "	public synchronized void force () {\n"
+		+ "		buffer.force ();\n	}\n"
+		+ "	public void close () throws java.io.IOException {\n"
+		+ "		if (defaultJournal == this) defaultJournal = null;\n"
+		+ "		channel.close ();\n	}\n}";
+
+	private final String code;
+
 	public PropertyObserverSource ()
 	{
-		super(URI.create("string:///PropertyObserver" + Kind.SOURCE.extension),Kind.SOURCE);
+		this ("PropertyObserver", "public interface PropertyObserver<T> {\n"
+			+ "	public void changed (T oldVal, T newVal);\n}");
+	}
+
+	private PropertyObserverSource (String name, String code)
+	{
+		super(URI.create("string:///" + name + Kind.SOURCE.extension),Kind.SOURCE);
+		this.code = "package com.idioticdev.javagrande;\n" + code;
+	}
+
+	/**
+	 * @return Sources of the generic observer and every primitive observer
+	 */
+	public static List<PropertyObserverSource> all ()
+	{
+		List<PropertyObserverSource> sources = new LinkedList<> ();
+		sources.add (new PropertyObserverSource ());
+		sources.add (new PropertyObserverSource ("GlobalPropertyObserver", "public interface GlobalPropertyObserver<S, T> {\n"
+			+ "	public void changed (S source, T oldVal, T newVal);\n}"));
+		sources.add (new PropertyObserverSource ("PropertyObservers", OBSERVERS));
+		sources.add (new PropertyObserverSource ("PropertyBatch", BATCH));
+		sources.add (new PropertyObserverSource ("PropertyDispatcher", DISPATCHER));
+		sources.add (new PropertyObserverSource ("PropertyJournal", JOURNAL));
+		sources.add (new PropertyObserverSource ("PropertyDescriptor", DESCRIPTOR));
+		sources.add (new PropertyObserverSource ("PropertyTable", TABLE));
+		sources.add (new PropertyObserverSource ("PropertyCodecs", CODECS));
+		sources.add (new PropertyObserverSource ("PropertyStore", STORE));
+		sources.add (new PropertyObserverSource ("PropertyCounter", COUNTER));
+		for (String[] primitive : PRIMITIVES)
+		{
+			String name = primitive[1]+"PropertyObserver";
+			String boxed = box (primitive[0]);
+			sources.add (new PropertyObserverSource (name, "public interface "+name+" extends PropertyObserver<"+boxed+"> {\n"
+				+ "	public void changed ("+primitive[0]+" oldVal, "+primitive[0]+" newVal);\n"
+				+ "	default public void changed ("+boxed+" oldVal, "+boxed+" newVal) {\n"
+				+ "		changed (("+primitive[0]+") oldVal, ("+primitive[0]+") newVal);\n	}\n}"));
+			sources.add (new PropertyObserverSource ("Global"+name, "public interface Global"+name+"<S> extends GlobalPropertyObserver<S, "+boxed+"> {\n"
+				+ "	public void changed (S source, "+primitive[0]+" oldVal, "+primitive[0]+" newVal);\n"
+				+ "	default public void changed (S source, "+boxed+" oldVal, "+boxed+" newVal) {\n"
+				+ "		changed (source, ("+primitive[0]+") oldVal, ("+primitive[0]+") newVal);\n	}\n}"));
+		}
+
+		return sources;
 	}
 
 	public static String getPackage ()
@@ -18,11 +577,46 @@ class PropertyObserverSource extends SimpleJavaFileObject
 		return "com.idioticdev.javagrande.PropertyObserver";
 	}
 
+	/**
+	 * @param type Type of a property
+	 * @return Simple name of the observer interface for the type, PropertyObserver for reference types
+	 */
+	public static String getObserver (String type)
+	{
+		for (String[] primitive : PRIMITIVES)
+			if (primitive[0].equals (type))
+				return primitive[1]+"PropertyObserver";
+
+		return "PropertyObserver";
+	}
+
+	/**
+	 * @param type Primitive type
+	 * @return Name of the wrapper class, or type itself if it is not primitive
+	 */
+	public static String box (String type)
+	{
+		switch (type)
+		{
+			case "char":
+				return "Character";
+			case "int":
+				return "Integer";
+			case "boolean":
+			case "byte":
+			case "short":
+			case "long":
+			case "float":
+			case "double":
+				return Character.toUpperCase (type.charAt (0))+type.substring (1);
+			default:
+				return type;
+		}
+	}
+
 	@Override
 	public CharSequence getCharContent(boolean ignoreEncodingErrors)
 	{
-		return "package com.idioticdev.javagrande;\n"
-			+  "public interface PropertyObserver<T> {\n"
-			+  "	public void changed (T oldVal, T newVal);\n}";
+		return code;
 	}
-}
\ No newline at end of file
+}
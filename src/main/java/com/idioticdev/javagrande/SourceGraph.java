@@ -0,0 +1,246 @@
+package com.idioticdev.javagrande;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.tools.JavaFileObject;
+
+import com.github.javaparser.ast.CompilationUnit;
+import com.github.javaparser.ast.body.AnnotationDeclaration;
+import com.github.javaparser.ast.body.ClassOrInterfaceDeclaration;
+import com.github.javaparser.ast.body.EnumDeclaration;
+import com.github.javaparser.ast.expr.FieldAccessExpr;
+import com.github.javaparser.ast.expr.NameExpr;
+import com.github.javaparser.ast.expr.QualifiedNameExpr;
+import com.github.javaparser.ast.type.ClassOrInterfaceType;
+import com.github.javaparser.ast.visitor.VoidVisitorAdapter;
+
+/**
+ * Splits sources into groups that can be compiled by separate javac tasks at the same time.
+ * <p>
+ * Two files are linked when one mentions the simple name of a type declared in the other.
+ * Linked files always end up in the same group, so every group can be compiled without the others.
+ * Matching on simple names over-approximates the real references, which only makes groups larger, never wrong.
+ */
+class SourceGraph
+{
+	private final int[] parent;
+	private final boolean[] opaque;
+
+	/**
+	 * @param names Names found in each source, null for sources that could not be inspected
+	 */
+	SourceGraph (List<Names> names)
+	{
+		parent = new int[names.size ()];
+		opaque = new boolean[names.size ()];
+		for (int i = 0; i < parent.length; i++)
+		{
+			parent[i] = i;
+			opaque[i] = names.get (i) == null;
+		}
+
+		Map<String, Integer> declarations = new HashMap<> ();
+		for (int i = 0; i < names.size (); i++)
+		{
+			if (opaque[i])
+				continue;
+
+			// A type declared in two files links them too
+			for (String name : names.get (i).declared)
+			{
+				Integer other = declarations.putIfAbsent (name, i);
+				if (other != null)
+					union (i, other);
+			}
+		}
+
+		for (int i = 0; i < names.size (); i++)
+		{
+			if (opaque[i])
+				continue;
+
+			for (String name : names.get (i).referenced)
+			{
+				Integer other = declarations.get (name);
+				if (other != null)
+					union (i, other);
+			}
+		}
+	}
+
+	/**
+	 * @param sources Sources after the first code generation pass
+	 * @return Graph of the sources, anything other than a {@link JavaSource} is opaque
+	 */
+	static SourceGraph of (List<JavaFileObject> sources)
+	{
+		List<Names> names = new ArrayList<> ();
+		for (JavaFileObject source : sources)
+			names.add (source instanceof JavaSource ? Names.of (((JavaSource) source).getCompilationUnit ()) : null);
+
+		return new SourceGraph (names);
+	}
+
+	/**
+	 * Groups of linked sources, each group can be compiled without the others.
+	 *
+	 * @return Indices of the sources in each component, in order of their first source
+	 */
+	List<List<Integer>> components ()
+	{
+		Map<Integer, List<Integer>> components = new LinkedHashMap<> ();
+		for (int i = 0; i < parent.length; i++)
+			if (!opaque[i])
+				components.computeIfAbsent (find (i), (k) -> new ArrayList<> ()).add (i);
+
+		return new ArrayList<> (components.values ());
+	}
+
+	/**
+	 * Packs the connected sources into at most count groups of similar size.
+	 * Opaque sources can not be inspected and are all put in the first group.
+	 *
+	 * @param items Items matching the sources the graph was built from
+	 * @param count Maximum number of groups, usually the number of threads compiling them
+	 * @return Groups in a deterministic order, largest first
+	 */
+	<T> List<List<T>> partition (List<T> items, int count)
+	{
+		List<List<Integer>> sorted = components ();
+		Collections.sort (sorted, (a, b) -> b.size () - a.size ());
+
+		// Largest component into the smallest group
+		List<List<T>> groups = new ArrayList<> ();
+		for (List<Integer> component : sorted)
+		{
+			List<T> target;
+			if (groups.size () < Math.max (count, 1))
+				groups.add (target = new ArrayList<> ());
+			else
+			{
+				target = groups.get (0);
+				for (List<T> group : groups)
+					if (group.size () < target.size ())
+						target = group;
+			}
+
+			for (int i : component)
+				target.add (items.get (i));
+		}
+
+		if (groups.isEmpty ())
+			groups.add (new ArrayList<> ());
+		for (int i = 0; i < opaque.length; i++)
+			if (opaque[i])
+				groups.get (0).add (items.get (i));
+
+		Collections.sort (groups, (a, b) -> b.size () - a.size ());
+		return groups;
+	}
+
+	private int find (int i)
+	{
+		while (parent[i] != i)
+			i = parent[i] = parent[parent[i]];
+		return i;
+	}
+
+	private void union (int a, int b)
+	{
+		a = find (a);
+		b = find (b);
+		if (a != b)
+			parent[Math.max (a, b)] = Math.min (a, b);
+	}
+
+	/**
+	 * Names of the types a source declares and every name in it that could refer to a type.
+	 */
+	static class Names
+	{
+		final Set<String> declared;
+		final Set<String> referenced;
+
+		Names (Set<String> declared, Set<String> referenced)
+		{
+			this.declared = declared;
+			this.referenced = referenced;
+		}
+
+		static Names of (CompilationUnit cu)
+		{
+			Names names = new Names (new HashSet<> (), new HashSet<> ());
+			new NameCollector (names.declared).visit (cu, names.referenced);
+			return names;
+		}
+	}
+
+	/**
+	 * Collects the names of declared types and every name that could refer to a type.
+	 */
+	private static class NameCollector extends VoidVisitorAdapter<Set<String>>
+	{
+		private final Set<String> declared;
+
+		NameCollector (Set<String> declared)
+		{
+			this.declared = declared;
+		}
+
+		@Override
+		public void visit (final ClassOrInterfaceDeclaration n, final Set<String> arg)
+		{
+			declared.add (n.getName ());
+			super.visit (n, arg);
+		}
+
+		@Override
+		public void visit (final EnumDeclaration n, final Set<String> arg)
+		{
+			declared.add (n.getName ());
+			super.visit (n, arg);
+		}
+
+		@Override
+		public void visit (final AnnotationDeclaration n, final Set<String> arg)
+		{
+			declared.add (n.getName ());
+			super.visit (n, arg);
+		}
+
+		@Override
+		public void visit (final ClassOrInterfaceType n, final Set<String> arg)
+		{
+			arg.add (n.getName ());
+			super.visit (n, arg);
+		}
+
+		@Override
+		public void visit (final NameExpr n, final Set<String> arg)
+		{
+			arg.add (n.getName ());
+			super.visit (n, arg);
+		}
+
+		@Override
+		public void visit (final QualifiedNameExpr n, final Set<String> arg)
+		{
+			arg.add (n.getName ());
+			super.visit (n, arg);
+		}
+
+		@Override
+		public void visit (final FieldAccessExpr n, final Set<String> arg)
+		{
+			arg.add (n.getField ());
+			super.visit (n, arg);
+		}
+	}
+}
@@ -0,0 +1,567 @@
+package com.idioticdev.javagrande;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaFileObject;
+
+/**
+ * Compiles very large source sets by sharding them across local {@link GrandeWorker} processes.
+ * <p>
+ * A compile runs in two rounds. First the files are split into contiguous shards and every worker parses its shard,
+ * sending back the names each file declares and references. From that index the coordinator builds a
+ * {@link SourceGraph} and assigns each group of linked files to a single worker, preferring the worker that
+ * already parsed most of them. Each worker then compiles its groups into its own output directory and the
+ * directories are merged into the real one in worker order, so the result does not depend on timing.
+ * <p>
+ * A worker that dies or stops answering within the timeout is dropped and its work handed to the next live worker,
+ * or compiled in this process when none are left. Whatever the worker wrote is deleted first, so partial class
+ * files never reach the merge.
+ */
+public class WorkerPool implements AutoCloseable
+{
+	/**
+	 * Seconds a worker may take to answer one request before it is considered hung, unless given.
+	 */
+	public static final long TIMEOUT = 300;
+
+	private final List<Worker> workers = new ArrayList<> ();
+	private final long timeout;
+	private final ExecutorService executor;
+	private final Path scratch;
+	private GrandeCompiler local;
+
+	/**
+	 * Starts the worker processes with the default timeout.
+	 *
+	 * @param count Number of workers to start
+	 * @throws IOException A worker could not be started
+	 */
+	public WorkerPool (int count) throws IOException
+	{
+		this (count, TIMEOUT);
+	}
+
+	/**
+	 * Starts the worker processes.
+	 *
+	 * @param count Number of workers to start
+	 * @param timeout Seconds a worker may take to answer one request before it is dropped
+	 * @throws IOException A worker could not be started
+	 */
+	public WorkerPool (int count, long timeout) throws IOException
+	{
+		count = Math.max (count, 1);
+		this.timeout = timeout;
+		executor = Executors.newFixedThreadPool (count, (r) ->
+		{
+			Thread thread = new Thread (r, "grande-coordinator");
+			thread.setDaemon (true);
+			return thread;
+		});
+		scratch = Files.createTempDirectory ("grande");
+
+		String java = Paths.get (System.getProperty ("java.home"), "bin", "java").toString ();
+		String threads = String.valueOf (Math.max (1, Runtime.getRuntime ().availableProcessors () / count));
+		try
+		{
+			for (int i = 0; i < count; i++)
+			{
+				ProcessBuilder builder = new ProcessBuilder (java, "-cp", System.getProperty ("java.class.path"),
+					GrandeWorker.class.getName (), threads);
+				builder.redirectError (ProcessBuilder.Redirect.INHERIT);
+				workers.add (new Worker (i, builder.start ()));
+			}
+		}
+		catch (IOException e)
+		{
+			close ();
+			throw e;
+		}
+	}
+
+	/**
+	 * Translates and compiles the files across the workers.
+	 * Class files go to the directory given with -d, or the current directory.
+	 *
+	 * @param files JavaGrande sources to compile
+	 * @param options Options passed through to javac
+	 * @return Diagnostics of all workers, the result has no sources as they stay in the workers
+	 */
+	public synchronized GrandeCompiler.Result compile (List<Path> files, List<String> options)
+	{
+		DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<> ();
+		List<Path> sorted = new ArrayList<> (files);
+		Collections.sort (sorted, Comparator.comparing (Path::toString));
+
+		List<Worker> live = live ();
+		Map<Path, Worker> holders = new HashMap<> ();
+		List<SourceGraph.Names> names = index (sorted, live, holders, diagnostics);
+		live = live ();
+
+		List<Path> outputs = new ArrayList<> ();
+		boolean success = true;
+		try
+		{
+			// Group linked files and hand each group to the worker holding most of it
+			Map<Worker, List<Path>> assigned = assign (new SourceGraph (names).components (), sorted, live, holders);
+			for (int i = 0; i < names.size (); i++)
+				success &= names.get (i) != null;
+
+			int o = options.indexOf ("-d");
+			Path target = Paths.get (o > -1 && o+1 < options.size () ? options.get (o+1) : "");
+
+			// Compile, moving the work of failed workers on until it is done
+			Map<Worker, Future<Boolean>> running = new HashMap<> ();
+			Map<Worker, DiagnosticCollector<JavaFileObject>> collected = new HashMap<> ();
+			Map<Worker, Path> written = new HashMap<> ();
+			List<Worker> order = new ArrayList<> (assigned.keySet ());
+			for (Worker worker : order)
+			{
+				Path output = scratch.resolve ("worker-"+worker.id);
+				outputs.add (output);
+				written.put (worker, output);
+				collected.put (worker, new DiagnosticCollector<> ());
+				running.put (worker, executor.submit (() -> worker.compile (assigned.get (worker), withOutput (options, output), collected.get (worker))));
+			}
+
+			List<Path> failed = new ArrayList<> ();
+			if (live.isEmpty ())
+				for (int i = 0; i < names.size (); i++)
+					if (names.get (i) != null)
+						failed.add (sorted.get (i));
+
+			for (Worker worker : order)
+			{
+				Boolean result = await (worker, running.get (worker));
+				if (result == null)
+				{
+					// Its class files may be partial, the retry writes them all again
+					delete (written.get (worker));
+					outputs.remove (written.get (worker));
+					failed.addAll (assigned.get (worker));
+				}
+				else
+					success &= result;
+			}
+
+			for (Worker worker : order)
+				for (Diagnostic<? extends JavaFileObject> d : collected.get (worker).getDiagnostics ())
+					diagnostics.report (d);
+
+			if (!failed.isEmpty ())
+			{
+				Path output = scratch.resolve ("local");
+				outputs.add (output);
+				success &= retry (failed, options, output, diagnostics);
+			}
+
+			merge (outputs, target);
+		}
+		catch (IOException e)
+		{
+			diagnostics.report (new GrandeCompiler.MessageDiagnostic (Diagnostic.Kind.ERROR, e.toString (), Diagnostic.NOPOS, Diagnostic.NOPOS));
+			success = false;
+		}
+		finally
+		{
+			for (Path output : outputs)
+				delete (output);
+		}
+
+		return new GrandeCompiler.Result (success && !hasErrors (diagnostics), diagnostics.getDiagnostics (), new ArrayList<> ());
+	}
+
+	/**
+	 * First round, every live worker parses a contiguous shard of the files.
+	 *
+	 * @param holders Filled with the worker that parsed each file
+	 * @return Names of each file in the order of files, null for files that could not be parsed
+	 */
+	private List<SourceGraph.Names> index (List<Path> files, List<Worker> live, Map<Path, Worker> holders, DiagnosticCollector<JavaFileObject> diagnostics)
+	{
+		List<SourceGraph.Names> names = new ArrayList<> (Collections.nCopies (files.size (), null));
+		int size = live.isEmpty () ? files.size () : (files.size ()+live.size ()-1) / live.size ();
+
+		List<Future<List<SourceGraph.Names>>> futures = new ArrayList<> ();
+		List<DiagnosticCollector<JavaFileObject>> collected = new ArrayList<> ();
+		for (int i = 0; i < live.size (); i++)
+		{
+			Worker worker = live.get (i);
+			List<Path> shard = files.subList (Math.min (i*size, files.size ()), Math.min ((i+1)*size, files.size ()));
+			DiagnosticCollector<JavaFileObject> collector = new DiagnosticCollector<> ();
+			collected.add (collector);
+			futures.add (executor.submit (() -> worker.index (shard, collector)));
+		}
+
+		List<Path> failed = new ArrayList<> ();
+		for (int i = 0; i < live.size (); i++)
+		{
+			int start = Math.min (i*size, files.size ());
+			List<Path> shard = files.subList (start, Math.min ((i+1)*size, files.size ()));
+			List<SourceGraph.Names> result = await (live.get (i), futures.get (i));
+			if (result == null)
+			{
+				failed.addAll (shard);
+				continue;
+			}
+
+			for (int j = 0; j < shard.size (); j++)
+			{
+				names.set (start+j, result.get (j));
+				holders.put (shard.get (j), live.get (i));
+			}
+			for (Diagnostic<? extends JavaFileObject> d : collected.get (i).getDiagnostics ())
+				diagnostics.report (d);
+		}
+
+		if (live.isEmpty ())
+			failed.addAll (files);
+
+		// Files no worker could index are indexed here
+		if (!failed.isEmpty ())
+		{
+			List<SourceGraph.Names> result = local ().index (failed, diagnostics);
+			for (int j = 0; j < failed.size (); j++)
+				names.set (files.indexOf (failed.get (j)), result.get (j));
+		}
+
+		return names;
+	}
+
+	/**
+	 * Assigns each component, largest first, to the worker that parsed most of its files
+	 * unless that would make the worker's share much larger than the others.
+	 *
+	 * @return Files for each worker, in worker order
+	 */
+	private Map<Worker, List<Path>> assign (List<List<Integer>> components, List<Path> files, List<Worker> live, Map<Path, Worker> holders)
+	{
+		Map<Worker, List<Path>> assigned = new TreeMap<> (Comparator.comparingInt ((Worker w) -> w.id));
+		if (live.isEmpty ())
+			return assigned;
+
+		int total = 0;
+		for (List<Integer> component : components)
+			total += component.size ();
+		int share = (total+live.size ()-1) / live.size ();
+
+		List<List<Integer>> sorted = new ArrayList<> (components);
+		Collections.sort (sorted, (a, b) -> b.size () - a.size ());
+
+		Map<Worker, Integer> load = new HashMap<> ();
+		for (Worker worker : live)
+			load.put (worker, 0);
+
+		for (List<Integer> component : sorted)
+		{
+			Map<Worker, Integer> affinity = new HashMap<> ();
+			for (int i : component)
+				affinity.merge (holders.get (files.get (i)), 1, Integer::sum);
+
+			Worker best = null;
+			for (Worker worker : live)
+			{
+				if (load.get (worker) + component.size () > share)
+					continue;
+				if (best == null || affinity.getOrDefault (worker, 0) > affinity.getOrDefault (best, 0))
+					best = worker;
+			}
+
+			// Nobody has room, fall back to the least loaded
+			if (best == null)
+				for (Worker worker : live)
+					if (best == null || load.get (worker) < load.get (best))
+						best = worker;
+
+			load.merge (best, component.size (), Integer::sum);
+			List<Path> target = assigned.computeIfAbsent (best, (w) -> new ArrayList<> ());
+			for (int i : component)
+				target.add (files.get (i));
+		}
+
+		return assigned;
+	}
+
+	/**
+	 * Compiles the work of failed workers on the remaining ones, one at a time, or here when none are left.
+	 * The output of an attempt that failed is deleted before the next one.
+	 *
+	 * @param output Directory to write the class files to
+	 * @return If the files compiled
+	 */
+	private boolean retry (List<Path> files, List<String> options, Path output, DiagnosticCollector<JavaFileObject> diagnostics)
+	{
+		List<String> redirected = withOutput (options, output);
+		for (Worker worker : live ())
+		{
+			DiagnosticCollector<JavaFileObject> collector = new DiagnosticCollector<> ();
+			Boolean result = await (worker, executor.submit (() -> worker.compile (files, redirected, collector)));
+			if (result != null)
+			{
+				for (Diagnostic<? extends JavaFileObject> d : collector.getDiagnostics ())
+					diagnostics.report (d);
+				return result;
+			}
+			delete (output);
+		}
+
+		GrandeCompiler.Result result = local ().compile (files, redirected);
+		for (Diagnostic<? extends JavaFileObject> d : result.getDiagnostics ())
+			diagnostics.report (d);
+		return result.isSuccess ();
+	}
+
+	/**
+	 * Waits for a worker's answer, dropping the worker if it failed or took too long.
+	 *
+	 * @return The answer or null if the worker failed
+	 */
+	private <T> T await (Worker worker, Future<T> future)
+	{
+		try
+		{
+			return future.get (timeout, TimeUnit.SECONDS);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread ().interrupt ();
+		}
+		catch (ExecutionException | TimeoutException e)
+		{
+			System.err.println ("Worker "+worker.id+" failed, moving its work. "+(e.getCause () != null ? e.getCause () : e));
+		}
+
+		future.cancel (true);
+		worker.kill ();
+		return null;
+	}
+
+	/**
+	 * Copies the class files of every output directory into target.
+	 * Directories are merged in order and the first copy of a file wins, so the result is the same every run.
+	 */
+	private static void merge (List<Path> outputs, Path target) throws IOException
+	{
+		Set<Path> written = new HashSet<> ();
+		for (Path output : outputs)
+		{
+			if (!Files.isDirectory (output))
+				continue;
+
+			List<Path> found;
+			try (Stream<Path> stream = Files.walk (output))
+			{
+				found = stream.filter (Files::isRegularFile).sorted ().collect (Collectors.toList ());
+			}
+
+			for (Path file : found)
+			{
+				Path relative = output.relativize (file);
+				if (!written.add (relative))
+					continue;
+
+				Path destination = target.resolve (relative.toString ());
+				if (destination.getParent () != null)
+					Files.createDirectories (destination.getParent ());
+				Files.copy (file, destination, StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+	}
+
+	/**
+	 * @return options with the class output directory replaced by output
+	 */
+	private static List<String> withOutput (List<String> options, Path output)
+	{
+		List<String> replaced = new LinkedList<> (options);
+		int o = replaced.indexOf ("-d");
+		if (o > -1)
+		{
+			replaced.remove (o);
+			if (o < replaced.size ())
+				replaced.remove (o);
+		}
+
+		replaced.add ("-d");
+		replaced.add (output.toString ());
+		return replaced;
+	}
+
+	private static void delete (Path path)
+	{
+		if (!Files.exists (path))
+			return;
+
+		try (Stream<Path> stream = Files.walk (path))
+		{
+			for (Path file : stream.sorted (Comparator.reverseOrder ()).collect (Collectors.toList ()))
+				Files.deleteIfExists (file);
+		}
+		catch (IOException e) {}
+	}
+
+	private static boolean hasErrors (DiagnosticCollector<JavaFileObject> diagnostics)
+	{
+		for (Diagnostic<? extends JavaFileObject> d : diagnostics.getDiagnostics ())
+			if (d.getKind () == Diagnostic.Kind.ERROR)
+				return true;
+
+		return false;
+	}
+
+	private List<Worker> live ()
+	{
+		List<Worker> live = new ArrayList<> ();
+		for (Worker worker : workers)
+			if (worker.process.isAlive ())
+				live.add (worker);
+
+		return live;
+	}
+
+	/**
+	 * Compiler used when no worker is left.
+	 */
+	private GrandeCompiler local ()
+	{
+		if (local == null)
+			local = new GrandeCompiler ();
+		return local;
+	}
+
+	@Override
+	public void close ()
+	{
+		for (Worker worker : workers)
+			worker.exit ();
+
+		executor.shutdownNow ();
+		if (local != null)
+			local.close ();
+		delete (scratch);
+	}
+
+	/**
+	 * Connection to one worker process. Only one request is sent at a time.
+	 */
+	private static class Worker
+	{
+		final int id;
+		final Process process;
+		final DataOutputStream out;
+		final DataInputStream in;
+
+		Worker (int id, Process process)
+		{
+			this.id = id;
+			this.process = process;
+			out = new DataOutputStream (new BufferedOutputStream (process.getOutputStream ()));
+			in = new DataInputStream (new BufferedInputStream (process.getInputStream ()));
+		}
+
+		synchronized List<SourceGraph.Names> index (List<Path> files, DiagnosticCollector<JavaFileObject> diagnostics) throws IOException
+		{
+			GrandeWorker.writeString (out, GrandeWorker.INDEX);
+			GrandeWorker.writeStrings (out, absolute (files));
+			out.flush ();
+
+			List<SourceGraph.Names> names = new ArrayList<> ();
+			for (int i = 0; i < files.size (); i++)
+				names.add (GrandeWorker.readNames (in));
+			for (Diagnostic<JavaFileObject> d : GrandeWorker.readDiagnostics (in))
+				diagnostics.report (d);
+
+			return names;
+		}
+
+		synchronized boolean compile (List<Path> files, List<String> options, DiagnosticCollector<JavaFileObject> diagnostics) throws IOException
+		{
+			GrandeWorker.writeString (out, GrandeWorker.COMPILE);
+			GrandeWorker.writeStrings (out, absolute (files));
+			GrandeWorker.writeStrings (out, options);
+			out.flush ();
+
+			boolean success = in.readBoolean ();
+			for (Diagnostic<JavaFileObject> d : GrandeWorker.readDiagnostics (in))
+				diagnostics.report (d);
+
+			return success;
+		}
+
+		/**
+		 * Workers share the coordinator's directory but paths are sent absolute so that never matters.
+		 */
+		private static List<String> absolute (List<Path> files)
+		{
+			List<String> paths = new ArrayList<> ();
+			for (Path file : files)
+				paths.add (file.toAbsolutePath ().toString ());
+
+			return paths;
+		}
+
+		/**
+		 * Kills the process and waits for it to stop writing.
+		 */
+		void kill ()
+		{
+			process.destroyForcibly ();
+			try
+			{
+				process.waitFor (5, TimeUnit.SECONDS);
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread ().interrupt ();
+			}
+		}
+
+		void exit ()
+		{
+			if (process.isAlive ())
+				try
+				{
+					GrandeWorker.writeString (out, GrandeWorker.EXIT);
+					out.flush ();
+					process.waitFor (5, TimeUnit.SECONDS);
+				}
+				catch (IOException e) {}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread ().interrupt ();
+				}
+
+			kill ();
+		}
+	}
+}